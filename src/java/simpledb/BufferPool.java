@@ -2,9 +2,20 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,6 +25,23 @@ import java.util.Set;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Transactions started with {@link #beginSnapshot} are read-only and take
+ * no locks at all. They read every page as it was committed when they
+ * started, using the old versions kept in the {@link VersionStore}, so they
+ * neither wait for writers nor hold them up.
+ * <p>
+ * By default a commit writes the pages the transaction changed (FORCE).
+ * With {@link #setNoForce} on, it only waits for its log records to reach
+ * the disk, and hands the pages to the background page writer; until they
+ * are written, the log is what makes the changes durable. A clean page
+ * whose committed image is not on disk yet is written before it leaves
+ * the pool.
+ * <p>
+ * Eviction prefers clean pages, but runs STEAL: when every page is dirty,
+ * a page with uncommitted changes is written out, once the changes are
+ * logged, so that transactions can change more pages than the pool holds.
+ * An abort or recovery rolls the changes back from the log.
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -24,24 +52,136 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Number of locks the page table is striped over when reading in pages. */
+    private static final int NUM_STRIPES = 64;
+
+    /** Default number of pages a sequential scan reads ahead. */
+    public static final int DEFAULT_READ_AHEAD_PAGES = 8;
+
+    /** Background threads that read pages ahead of sequential scans. */
+    private static final ExecutorService readAheadExecutor =
+        Executors.newFixedThreadPool(2, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-read-ahead");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
     private int maxNumPages;
     private static int numberEntries = 0;
-    private HashMap<PageId, Page> pageIdPageHashMap;
-    private HashMap<PageId, Integer> recentlyUsed;
+    private ConcurrentHashMap<PageId, Page> pageIdPageHashMap;
+    private final ReplacementPolicy replacementPolicy;
+    private final Object[] stripes;
+    /**
+     * Locks serializing the writes of pages to disk, striped like the page
+     * table, so that an older image of a page is never written after a
+     * newer one. Taken after the pool monitor and before pendingDeletes.
+     */
+    private final ReentrantLock[] writeLocks;
+    private final PageWriter pageWriter = new PageWriter(this);
+    // hit and miss counts, kept per stripe so concurrent hits do not contend
+    private final AtomicLongArray hits;
+    private final AtomicLongArray misses;
     private volatile LockManager lockManager;
-    HashMap<TransactionId, Long> allTransactions;
+    private final VersionStore versionStore = new VersionStore();
+    /** the timestamps of running snapshot transactions */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private volatile int readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+    private volatile boolean noForce = false;
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Rows deleted under record locks by transactions that have not completed
+     * yet, by page. Several transactions can have deletes pending on the same
+     * page, so committing or aborting one of them must leave the others'
+     * deletes alone. Changes to such pages, and commits and aborts, are
+     * serialized on this map.
+     */
+    private final Map<PageId, List<PendingDelete>> pendingDeletes = new HashMap<>();
+    /** the pages each transaction has pending deletes on; guarded by pendingDeletes */
+    private final Map<TransactionId, Set<PageId>> pendingDeletePages = new HashMap<>();
+    /**
+     * Pages evicted with uncommitted changes, by page, until the
+     * transaction that made them completes; guarded by pendingDeletes, and
+     * only added to under the pool monitor as well.
+     */
+    private final Map<PageId, StolenPage> stolenPages = new HashMap<>();
+    /** the pages each transaction had stolen; guarded by pendingDeletes */
+    private final Map<TransactionId, Set<PageId>> stolenPagesOf = new HashMap<>();
+    /** the number of pages stolen so far; guarded by the pool monitor */
+    private long steals = 0;
+
+    /** A row deleted by a transaction that has not completed yet. */
+    private static class PendingDelete {
+        final TransactionId tid;
+        final RecordId rid;
+        final Tuple tuple;
+
+        PendingDelete(TransactionId tid, RecordId rid, Tuple tuple) {
+            this.tid = tid;
+            this.rid = rid;
+            this.tuple = tuple;
+        }
+    }
+    /**
+     * A page evicted with uncommitted changes of tid, and the committed
+     * image they were made to, which is on disk no longer.
+     */
+    private static class StolenPage {
+        final TransactionId tid;
+        final Page committed;
+
+        StolenPage(TransactionId tid, Page committed) {
+            this.tid = tid;
+            this.committed = committed;
+        }
+    }
+    /** Clean pages are evicted first. Under NO FORCE they may still have
+        to be written. */
+    private final ReplacementPolicy.Evictable cleanPages = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            Page page = pageIdPageHashMap.get(pid);
+            return page != null && page.isDirty() == null;
+        }
+    };
+    /** Dirty pages are stolen if need be, see canSteal(). */
+    private final ReplacementPolicy.Evictable stealablePages = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            synchronized (pendingDeletes) {
+                return canSteal(pid);
+            }
+        }
+    };
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting with
+     * CLOCK replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param replacementPolicy decides which page to evict when the pool is full
+     */
+    public BufferPool(int numPages, ReplacementPolicy replacementPolicy) {
         // some code goes here
         this.maxNumPages = numPages;
-        this.pageIdPageHashMap = new HashMap<>();
-        this.recentlyUsed = new HashMap<>();
+        this.pageIdPageHashMap = new ConcurrentHashMap<>();
+        this.replacementPolicy = replacementPolicy;
+        this.stripes = new Object[NUM_STRIPES];
+        this.writeLocks = new ReentrantLock[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Object();
+            writeLocks[i] = new ReentrantLock();
+        }
+        this.hits = new AtomicLongArray(NUM_STRIPES);
+        this.misses = new AtomicLongArray(NUM_STRIPES);
         lockManager = new LockManager();
-        allTransactions = new HashMap<>();
     }
 
     /**
@@ -54,6 +194,10 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Hits are served straight from the concurrent page table without taking
+     * any pool-wide monitor. A miss only locks the stripe the page id hashes
+     * to, so threads reading in different pages do not wait on each other.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -62,61 +206,293 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
 
-        if(!allTransactions.containsKey(tid)){
-            allTransactions.put(tid, System.currentTimeMillis());
-            boolean granted = lockManager.grantLock(tid, pid, perm);
-            while (granted){
-                if(System.currentTimeMillis() - allTransactions.get(tid) > 250){
-                    throw  new TransactionAbortedException();
-                }
+        Long snapshot = snapshotOf(tid);
+        if (snapshot != null) {
+            return getSnapshotPage(snapshot, pid, perm, null);
+        }
+        acquireLock(tid, pid, perm);
 
-                try{
-                    Thread.sleep(200);
-                    granted = lockManager.grantLock(tid, pid, perm);
-                }catch (Exception e){
-                    e.printStackTrace();
+        // some code goes here
+        return lookupPage(pid, null);
+    }
+
+    /**
+     * Retrieves the page holding a record, locking only the record itself
+     * and the page and table in the matching intention mode. Other
+     * transactions can lock other records of the page at the same time, so
+     * the caller must only touch the given record.
+     *
+     * @param tid the ID of the transaction requesting the record
+     * @param rid the record
+     * @param perm the requested permissions on the record
+     */
+    public Page getPageForRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (snapshotOf(tid) != null) {
+            throw new DbException("snapshot transactions are read-only");
+        }
+        lockManager.acquireRecordLock(tid, rid, perm);
+        return lookupPage(rid.getPageId(), null);
+    }
+
+    /**
+     * Returns the cached copy of a page, reading it in if necessary.
+     *
+     * @param ring the frames reserved by a sequential scan, or null
+     */
+    private Page lookupPage(PageId pid, ScanRing ring) throws DbException {
+        int stripe = stripeIndex(pid);
+        Page page = pageIdPageHashMap.get(pid);
+        if(page != null){
+            hits.incrementAndGet(stripe);
+            replacementPolicy.pageAccessed(pid);
+            return page;
+        }
+
+        synchronized (stripes[stripe]) {
+            // another thread may have read the page in while we waited
+            page = pageIdPageHashMap.get(pid);
+            if(page == null){
+                misses.incrementAndGet(stripe);
+                DbFile dbFile = Database.getCatalog().getDbFile(pid.getTableId());
+                page = dbFile.readPage(pid);
+                if(page == null){
+                    return null;
                 }
+                cachePage(page, ring);
+                return page;
             }
+        }
+        hits.incrementAndGet(stripe);
+        replacementPolicy.pageAccessed(pid);
+        return page;
+    }
 
-        }else{
-            boolean granted = lockManager.grantLock(tid, pid, perm);
-            while (granted){
-                if(System.currentTimeMillis() - allTransactions.get(tid) > 500){
-                    throw new TransactionAbortedException();
-                }
+    /**
+     * Returns the index of the stripe whose monitor guards reads of the given
+     * page into the pool.
+     */
+    private int stripeIndex(PageId pid) {
+        return (pid.hashCode() & 0x7fffffff) % NUM_STRIPES;
+    }
+
+    /**
+     * Retrieve the specified page for a large sequential scan. Works like
+     * {@link #getPage(TransactionId, PageId, Permissions)}, except that once
+     * the scan's ring is full, a page that has to be read in takes over the
+     * frame of the oldest page the scan read in itself rather than evicting
+     * a page chosen by the replacement policy.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the frames reserved by the requesting scan
+     * @see #useScanRing
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+        Long snapshot = snapshotOf(tid);
+        if (snapshot != null) {
+            return getSnapshotPage(snapshot, pid, perm, ring);
+        }
+        acquireLock(tid, pid, perm);
+        return lookupPage(pid, ring);
+    }
+
+    /**
+     * Starts tid as a read-only snapshot transaction: until it completes,
+     * getPage returns shared, read-only copies of pages as they were
+     * committed at this point, without taking locks, and asking for write
+     * permission fails. tid must not have read or written anything yet.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, versionStore.beginSnapshot());
+    }
+
+    /** @return the store of old page versions kept for snapshot transactions */
+    public VersionStore getVersionStore() {
+        return versionStore;
+    }
+
+    private Long snapshotOf(TransactionId tid) {
+        // tests use null transaction ids, which ConcurrentHashMap rejects
+        return tid == null ? null : snapshots.get(tid);
+    }
+
+    /**
+     * Returns the page as committed at snapshot ts. The current
+     * committed image has to be read before the stored versions are looked
+     * at, see {@link VersionStore}.
+     */
+    private Page getSnapshotPage(long ts, PageId pid, Permissions perm, ScanRing ring)
+        throws DbException {
+        if (perm == Permissions.READ_WRITE) {
+            throw new DbException("snapshot transactions are read-only");
+        }
+        Page current = lookupPage(pid, ring);
+        if (current == null) {
+            return null;
+        }
+        Page committed = current.getSharedBeforeImage();
+        Page version = versionStore.getVersion(pid, ts);
+        return version != null ? version : committed;
+    }
 
-                try{
-                    Thread.sleep(10);
-                    granted = lockManager.grantLock(tid, pid, perm);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    /**
+     * Returns true if a sequential scan over a file of the given size should
+     * read through a {@link ScanRing}. PostgreSQL switches to its bulk read
+     * strategy at a quarter of shared buffers; our pools are small enough
+     * that we only do it for files that would not fit in the pool at all,
+     * so tables that fit stay fully cached between scans.
+     *
+     * @param numPages the number of pages the scan will read
+     */
+    public boolean useScanRing(int numPages) {
+        return numPages > maxNumPages;
+    }
+
+    /**
+     * Creates a ring for a sequential scan, sized to at most an eighth of
+     * the pool so that a few concurrent scans leave most frames alone.
+     */
+    public ScanRing newScanRing() {
+        return new ScanRing(Math.min(ScanRing.MAX_FRAMES, Math.max(1, maxNumPages / 8)));
+    }
+
+    /** @return how many pages sequential scans read ahead of the page they are on */
+    public int getReadAheadPages() {
+        return readAheadPages;
+    }
+
+    /**
+     * Sets how many pages sequential scans read ahead of the page they are
+     * on; 0 turns read-ahead off.
+     */
+    public void setReadAheadPages(int pages) {
+        this.readAheadPages = Math.max(0, pages);
+    }
+
+    /**
+     * Locks a whole table, e.g. in IX by an operator that is about to write
+     * to it, so the intention is declared once instead of with every page.
+     *
+     * @throws DbException if tid is a snapshot transaction, which takes no locks
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode)
+        throws TransactionAbortedException, DbException {
+        if (snapshotOf(tid) != null) {
+            throw new DbException("snapshot transactions do not lock tables");
+        }
+        lockManager.acquireTableLock(tid, tableId, mode);
+    }
+
+    /** @return the lock manager, e.g. to change how it handles deadlocks */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * Asynchronously reads a page into the pool ahead of a sequential scan
+     * that will ask for it soon. This is only a hint: no lock is taken (the
+     * scan locks the page when it gets to it, as usual), and the page is
+     * dropped rather than evicting anything if the pool has no free frame.
+     *
+     * @param pid the page to read
+     * @param ring the ring of the requesting scan, or null; if the ring is
+     *             full, the page may take over the ring's oldest frame
+     */
+    public void prefetchPage(final PageId pid, final ScanRing ring) {
+        if(pageIdPageHashMap.containsKey(pid)){
+            return;
+        }
+        readAheadExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    synchronized (stripes[stripeIndex(pid)]) {
+                        if(pageIdPageHashMap.containsKey(pid) || !hasFrameFor(ring)){
+                            return;
+                        }
+                        Page page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+                        if(page != null){
+                            cachePrefetchedPage(page, ring);
+                        }
+                    }
+                } catch (Exception e) {
+                    // the scan will read the page itself
+                    Debug.log("read-ahead of %s failed: %s", pid, e);
                 }
             }
+        });
+    }
+
+    private synchronized boolean hasFrameFor(ScanRing ring) {
+        return pageIdPageHashMap.size() < maxNumPages || (ring != null && ring.isFull());
+    }
+
+    private synchronized void cachePrefetchedPage(Page page, ScanRing ring) throws DbException {
+        if(hasFrameFor(ring)){
+            cachePage(page, ring);
         }
+    }
 
+    /**
+     * Blocks until tid holds a lock on pid that satisfies perm.
+     */
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquireLock(tid, pid, perm);
+    }
 
-        // some code goes here
-        if(this.pageIdPageHashMap.containsKey(pid)){
-            updateRecentlyUsed();
-            recentlyUsed.put(pid, 0);
-            return this.pageIdPageHashMap.get(pid);
-        }else{
+    /** @return the number of getPage calls served from the pool so far */
+    public long getHitCount() {
+        return sum(hits);
+    }
 
-            HashMap<DbFile, String> filePrimaryKeyMap = Database.getCatalog().filePrimaryKeyMap();
-            for(DbFile dbFile : filePrimaryKeyMap.keySet()){
-                if(dbFile.getId() == pid.getTableId()){
-                    Page page = dbFile.readPage(pid);
-                    if(pageIdPageHashMap.size() >= maxNumPages){
-                        evictPage();
-                    }
-                    this.pageIdPageHashMap.put(pid, page);
-                    updateRecentlyUsed();
-                    recentlyUsed.put(pid, 0);
-                    return page;
+    /** @return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return sum(misses);
+    }
+
+    private static long sum(AtomicLongArray counts) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Adds a freshly read page to the page table, evicting a page first if
+     * the pool is full. Holding the pool monitor here keeps concurrent misses
+     * from overshooting maxNumPages.
+     *
+     * @param ring if not null, the page is charged to this scan ring, and the
+     *             ring's oldest page is dropped once the ring is full
+     */
+    private synchronized void cachePage(Page page, ScanRing ring) throws DbException {
+        if(ring != null){
+            PageId recycled = ring.add(page.getId());
+            Page old = recycled == null ? null : pageIdPageHashMap.get(recycled);
+            if(old != null && old.isDirty() == null){
+                removeCleanPage(recycled);
+            }
+        }
+        if(pageIdPageHashMap.size() >= maxNumPages){
+            evictPage();
+        }
+        // pages are only stolen under this monitor, so an empty map is up to date
+        if(!stolenPages.isEmpty()){
+            synchronized (pendingDeletes) {
+                StolenPage stolen = stolenPages.get(page.getId());
+                if(stolen != null){
+                    // what was read holds stolen.tid's changes, not the committed image
+                    ((HeapPage) page).setBeforeImage(stolen.committed.getPageData());
+                    page.markDirty(true, stolen.tid);
                 }
             }
         }
-        return null;
+        pageIdPageHashMap.put(page.getId(), page);
+        replacementPolicy.pageAdded(page.getId());
     }
 
     /**
@@ -165,26 +541,287 @@ public class BufferPool {
         // not necessary for proj1
         // commit or Abort. commit : remove all dirty pages and revert back to the original page.
         // abort : revert back.  Both the cases just remove all the locks for that transaction.
-        allTransactions.remove(tid);
         if(!commit){
-            for(Page page : pageIdPageHashMap.values()){
-                if(page.isDirty() != null && page.isDirty() == tid){
-                    pageIdPageHashMap.put(page.getId(), page.getBeforeImage());
+            LogFile log = Database.getLogFile();
+            if (log.hasRecords(tid)) {
+                // rolls back on disk what was written of tid's changes, and logs the abort
+                log.logAbort(tid);
+            }
+            synchronized (pendingDeletes) {
+                completeSharedPages(tid, false, 0, null);
+                for(Page page : pageIdPageHashMap.values()){
+                    if(page.isDirty() != null && page.isDirty() == tid){
+                        Page before = page.getBeforeImage();
+                        pageIdPageHashMap.put(page.getId(), before);
+                        DbFile file = Database.getCatalog().getDbFile(page.getId().getTableId());
+                        if (file instanceof HeapFile) {
+                            // rolled back inserts and deletes change which pages have room
+                            ((HeapFile) file).noteFreeSpace((HeapPage) before);
+                        }
+                    }
                 }
+                // logAbort rolled them back on disk
+                removeStolenPages(tid);
             }
         }else{
-            for(Page page : pageIdPageHashMap.values()){
-                if(page.isDirty() != null && page.isDirty() == tid) {
-                    flushPage(page.getId());
-                    page.getBeforeImage();
+            commitPages(tid);
+        }
+        lockManager.releaseAllLocks(tid);
+        Long snapshot = snapshotOf(tid);
+        if (snapshot != null) {
+            snapshots.remove(tid);
+            versionStore.endSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Commits tid. First, holding the commit lock, the changes tid made to
+     * its pages are logged, the new images become the pages' committed
+     * images (keeping the ones they replace for running snapshots), and the
+     * commit record is appended to the log. Then, without the lock, so that
+     * other commits can append their records meanwhile and share the log
+     * flush, the commit waits for its record to reach the disk, and only
+     * then writes the committed images, unless a later commit or the page
+     * writer has written the page since. Under NO FORCE the page writer
+     * is left to write them instead.
+     */
+    private void commitPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        long start = System.nanoTime();
+        Map<PageId, Page> written = new HashMap<>();
+        long commit = -1;
+        long upTo;
+        long ts;
+        synchronized (pendingDeletes) {
+            ts = versionStore.beginCommit();
+            try {
+                completeSharedPages(tid, true, ts, written);
+                for(Page page : pageIdPageHashMap.values()){
+                    if(page.isDirty() != null && page.isDirty() == tid) {
+                        Page before = page.getBeforeImage();
+                        log.logWrite(tid, before, page);
+                        versionStore.addVersion(page.getId(), before, ts);
+                        // later aborts must roll back to what is being committed
+                        page.setBeforeImage();
+                        // the page itself may change again before it is written
+                        written.put(page.getId(), page.getBeforeImage());
+                    }
+                }
+                for (StolenPage stolen : removeStolenPages(tid)) {
+                    PageId pid = stolen.committed.getId();
+                    if (!written.containsKey(pid)) {
+                        // on disk and logged already; snapshots still need the old image
+                        versionStore.addVersion(pid, stolen.committed, ts);
+                    }
+                }
+                if (!written.isEmpty() || log.hasRecords(tid)) {
+                    commit = log.appendCommit(tid);
+                }
+                upTo = log.getCurrentLsn();
+            } catch (IOException e) {
+                versionStore.endCommit(ts);
+                throw e;
+            }
+        }
+        try {
+            if (commit >= 0) {
+                log.awaitCommit(commit, start);
+            }
+            boolean force = !noForce;
+            for (Page committed : written.values()) {
+                PageId pid = committed.getId();
+                if (force) {
+                    ReentrantLock lock = pageWriteLock(pid);
+                    lock.lock();
+                    try {
+                        if (log.needsWrite(pid, upTo)) {
+                            log.flushTo(upTo);
+                            Database.getCatalog().getDbFile(pid.getTableId()).writePage(committed);
+                            log.pageWritten(pid, upTo);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
                 }
+                synchronized (pendingDeletes) {
+                    // others may have deleted rows from it under record locks
+                    Page page = pageIdPageHashMap.get(pid);
+                    if (page != null && page.isDirty() == tid) {
+                        page.markDirty(false, null);
+                    }
+                }
+            }
+            if (!force) {
+                pageWriter.enqueue(written.keySet());
+            }
+        } finally {
+            versionStore.endCommit(ts);
+        }
+    }
+
+    /**
+     * Forgets the pages tid had stolen, as it completes. The caller holds
+     * pendingDeletes.
+     *
+     * @return the pages tid had stolen
+     */
+    private List<StolenPage> removeStolenPages(TransactionId tid) {
+        List<StolenPage> removed = new ArrayList<>();
+        Set<PageId> pids = stolenPagesOf.remove(tid);
+        if (pids != null) {
+            for (PageId pid : pids) {
+                removed.add(stolenPages.remove(pid));
+            }
+        }
+        return removed;
+    }
 
-                if(page.isDirty() == null){
-                    page.getBeforeImage();
+    /**
+     * Turns NO FORCE on or off. With it on, commits do not write pages
+     * themselves, but leave them to the page writer; see the class comment.
+     */
+    public void setNoForce(boolean on) {
+        noForce = on;
+    }
+
+    public boolean isNoForce() {
+        return noForce;
+    }
+
+    /** @return the lock that serializes writes of the given page to disk */
+    ReentrantLock pageWriteLock(PageId pid) {
+        return writeLocks[stripeIndex(pid)];
+    }
+
+    /**
+     * @return the locks that serialize writes of the given pages, each
+     *         once and in the order they have to be taken in
+     */
+    List<ReentrantLock> pageWriteLocks(Collection<PageId> pids) {
+        boolean[] needed = new boolean[NUM_STRIPES];
+        for (PageId pid : pids) {
+            needed[stripeIndex(pid)] = true;
+        }
+        List<ReentrantLock> locks = new ArrayList<>();
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            if (needed[i]) {
+                locks.add(writeLocks[i]);
+            }
+        }
+        return locks;
+    }
+
+    /**
+     * Writes the committed image of a cached page to disk if the log has
+     * changes to it that may not be on disk yet. Used by the page writer,
+     * which holds no pool-wide lock while writing, and before a clean page
+     * leaves the pool.
+     *
+     * @return true if the page was written
+     */
+    boolean writeCommittedPage(PageId pid) throws IOException {
+        LogFile log = Database.getLogFile();
+        ReentrantLock lock = pageWriteLock(pid);
+        lock.lock();
+        try {
+            Page committed;
+            long upTo;
+            synchronized (pendingDeletes) {
+                Page page = pageIdPageHashMap.get(pid);
+                if (page == null) {
+                    // only clean pages leave the pool, once they are on disk
+                    return false;
                 }
+                committed = page.getBeforeImage();
+                upTo = log.getCurrentLsn();
+            }
+            if (!log.needsWrite(pid, upTo)) {
+                return false;
             }
+            // the committed image has nothing logged after the page's last update
+            log.flushPage(pid);
+            Database.getCatalog().getDbFile(pid.getTableId()).writePage(committed);
+            log.pageWritten(pid, upTo);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Has the page writer write the committed images of the given pages in
+     * the background; used by {@link LogFile#logCheckpoint}, and by commits
+     * under NO FORCE.
+     */
+    void writeBehind(Collection<PageId> pids) {
+        pageWriter.enqueue(pids);
+    }
+
+    /** Waits until the page writer has written every page handed to it so far. */
+    public void drainPageWriter() throws InterruptedException {
+        pageWriter.drain();
+    }
+
+    /** @return the number of pages the page writer has written */
+    public long getBackgroundWriteCount() {
+        return pageWriter.getPagesWritten();
+    }
+
+    /**
+     * Commits or aborts tid's row deletes on pages where other running
+     * transactions have deletes pending as well. On commit, the page with
+     * the other transactions' rows put back is logged, becomes its before
+     * image and is added to the images the commit writes once its record
+     * is on disk. On abort, tid's rows are put back into the cached page.
+     * Either way the page stays dirty on behalf of one of the others.
+     * Pages where only tid has deletes pending are left for the usual
+     * handling of pages tid dirtied. The caller holds pendingDeletes.
+     *
+     * @param ts the timestamp of the commit, see {@link VersionStore}
+     * @param written gets the committed images to write, on commit
+     */
+    private void completeSharedPages(TransactionId tid, boolean commit, long ts,
+                                     Map<PageId, Page> written) throws IOException {
+        Set<PageId> pages = pendingDeletePages.remove(tid);
+        if (pages == null) {
+            return;
+        }
+        for (PageId pid : pages) {
+            List<PendingDelete> mine = new ArrayList<>();
+            List<PendingDelete> others = new ArrayList<>();
+            for (PendingDelete d : pendingDeletes.get(pid)) {
+                (d.tid == tid ? mine : others).add(d);
+            }
+            if (others.isEmpty()) {
+                pendingDeletes.remove(pid);
+                continue;
+            }
+            pendingDeletes.put(pid, others);
+
+            // pages others have deletes pending on are never stolen, so the page is still cached
+            HeapPage page = (HeapPage) pageIdPageHashMap.get(pid);
+            HeapFile file = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
+            try {
+                if (commit) {
+                    HeapPage committed = new HeapPage(page.getId(), page.getPageData());
+                    for (PendingDelete d : others) {
+                        committed.restoreTuple(d.rid, d.tuple);
+                    }
+                    Database.getLogFile().logWrite(tid, page.getBeforeImage(), committed);
+                    versionStore.addVersion(pid, page.getBeforeImage(), ts);
+                    page.setBeforeImage(committed.getPageData());
+                    written.put(pid, committed);
+                } else {
+                    for (PendingDelete d : mine) {
+                        page.restoreTuple(d.rid, d.tuple);
+                    }
+                    file.noteFreeSpace(page);
+                }
+            } catch (DbException e) {
+                throw new IOException("could not complete deletes on " + pid + ": " + e.getMessage());
+            }
+            page.markDirty(true, others.get(0).tid);
         }
-        lockManager.releaseAllLocks(tid);
     }
 
     /**
@@ -205,24 +842,22 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-        try{
-            ArrayList<Page> pages = new ArrayList<>();
-            DbFile dbFile = Database.getCatalog().getDbFile(tableId);
-            HeapFile heapFile = (HeapFile) dbFile;
-            pages = heapFile.insertTuple(tid, t);
-            for(Page page : pages){
-                pageIdPageHashMap.put(page.getId(), page);
-                page.markDirty(true, tid);
+        DbFile dbFile = Database.getCatalog().getDbFile(tableId);
+        ArrayList<Page> pages = dbFile.insertTuple(tid, t);
+        for(Page page : pages){
+            if(pageIdPageHashMap.put(page.getId(), page) == null){
+                replacementPolicy.pageAdded(page.getId());
             }
-        }catch (Exception e){
-            throw new DbException("");
+            page.markDirty(true, tid);
         }
     }
 
     /**
      * Remove the specified tuple from the buffer pool.
-     * Will acquire a write lock on the page the tuple is removed from. May block if
-     * the lock cannot be acquired.
+     * Will acquire a write lock on the tuple's record, and intention locks on
+     * its page and table, so other transactions can delete other tuples from
+     * the same page at the same time. May block if the lock cannot be
+     * acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit.  Does not need to update cached versions of any pages that have 
@@ -236,10 +871,47 @@ public class BufferPool {
         throws DbException, TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-        int tableId = t.getRecordId().getPageId().getTableId();
-        DbFile dbFile = Database.getCatalog().getDbFile(tableId);
-        Page page = dbFile.deleteTuple(tid, t);
-        page.markDirty(true, tid);
+        RecordId rid = t.getRecordId();
+        PageId pid = rid.getPageId();
+        HeapFile file = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
+        // take the lock and read the page in first: reading a page in takes
+        // the pool monitor, which comes before pendingDeletes
+        Page page = getPageForRecord(tid, rid, Permissions.READ_WRITE);
+        while (true) {
+            if (page == null) {
+                throw new DbException("no page " + pid);
+            }
+            synchronized (pendingDeletes) {
+                if (pageIdPageHashMap.get(pid) == page) {
+                    file.deleteTuple((HeapPage) page, t);
+                    page.markDirty(true, tid);
+                    notePendingDelete(tid, rid, t);
+                    return;
+                }
+            }
+            // evicted since we looked it up; read it in again
+            page = lookupPage(pid, null);
+        }
+    }
+
+    /**
+     * Records a delete of tid that has not completed yet. The caller holds
+     * pendingDeletes.
+     */
+    private void notePendingDelete(TransactionId tid, RecordId rid, Tuple t) {
+        PageId pid = rid.getPageId();
+        List<PendingDelete> deletes = pendingDeletes.get(pid);
+        if (deletes == null) {
+            deletes = new ArrayList<>();
+            pendingDeletes.put(pid, deletes);
+        }
+        deletes.add(new PendingDelete(tid, rid, t));
+        Set<PageId> pages = pendingDeletePages.get(tid);
+        if (pages == null) {
+            pages = new HashSet<>();
+            pendingDeletePages.put(tid, pages);
+        }
+        pages.add(pid);
     }
 
     /**
@@ -250,10 +922,7 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for proj1
-        for (PageId key : pageIdPageHashMap.keySet()) {
-            flushPage(key);
-        }
-
+        writePages(new ArrayList<>(pageIdPageHashMap.values()));
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -265,6 +934,7 @@ public class BufferPool {
         // some code goes here
 	// not necessary for proj1
         pageIdPageHashMap.remove(pid);
+        replacementPolicy.pageRemoved(pid);
     }
 
     /**
@@ -274,75 +944,223 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for proj1
-        int tableId = pid.getTableId();
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDbFile(tableId);
-        heapFile.writePage(pageIdPageHashMap.get(pid));
-        pageIdPageHashMap.get(pid).markDirty(false, null);
+        Page page = pageIdPageHashMap.get(pid);
+        if (page != null) {
+            writePages(Collections.singletonList(page));
+        }
+    }
+
+    /**
+     * Writes pages to disk. Uncommitted changes on them are logged, and
+     * the log forced, before any page is written, so that they can be
+     * rolled back after a crash. The pages stay dirty, since they still
+     * hold changes that have not committed.
+     */
+    private synchronized void writePages(List<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        boolean logged = false;
+        synchronized (pendingDeletes) {
+            for (Page page : pages) {
+                if (page.isDirty() != null) {
+                    logUncommitted(log, page);
+                    logged = true;
+                }
+            }
+        }
+        if (logged) {
+            log.force();
+        }
+        long upTo = log.getCurrentLsn();
+        for (Page page : pages) {
+            ReentrantLock lock = pageWriteLock(page.getId());
+            lock.lock();
+            try {
+                Database.getCatalog().getDbFile(page.getId().getTableId()).writePage(page);
+                log.pageWritten(page.getId(), upTo);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Logs the uncommitted changes on a dirty page, each against the
+     * transaction that made it. Other transactions' pending deletes are
+     * logged one transaction at a time, each on top of the image the ones
+     * before left; the page's dirtier comes last, with whatever else
+     * changed. The caller holds pendingDeletes.
+     */
+    private void logUncommitted(LogFile log, Page page) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        Page before = page.getBeforeImage();
+        List<PendingDelete> deletes = pendingDeletes.get(page.getId());
+        if (deletes != null) {
+            Map<TransactionId, List<PendingDelete>> others = new LinkedHashMap<>();
+            for (PendingDelete d : deletes) {
+                if (d.tid == dirtier) {
+                    continue;
+                }
+                List<PendingDelete> theirs = others.get(d.tid);
+                if (theirs == null) {
+                    theirs = new ArrayList<>();
+                    others.put(d.tid, theirs);
+                }
+                theirs.add(d);
+            }
+            for (Map.Entry<TransactionId, List<PendingDelete>> e : others.entrySet()) {
+                HeapPage after = new HeapPage((HeapPageId) page.getId(), before.getPageData());
+                try {
+                    for (PendingDelete d : e.getValue()) {
+                        after.deleteTuple(d.tuple);
+                    }
+                } catch (DbException ex) {
+                    throw new IOException("could not log deletes on " + page.getId() + ": " + ex.getMessage());
+                }
+                log.logWrite(e.getKey(), before, after);
+                before = after;
+            }
+        }
+        log.logWrite(dirtier, before, page);
     }
 
     /** Write all pages of the specified transaction to disk.
+     * The transaction has not committed, so its changes are logged first
+     * and the pages stay dirty; see {@link #flushAllPages}.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
-        for(Page page : pageIdPageHashMap.values()){
-            if(page.isDirty() != null && page.isDirty() == tid){
-                flushPage(page.getId());
+        List<Page> pages = new ArrayList<>();
+        for (Page page : pageIdPageHashMap.values()) {
+            if (page.isDirty() != null && page.isDirty() == tid) {
+                pages.add(page);
             }
         }
+        writePages(pages);
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * A clean page is evicted if there is one, so that at most its committed
+     * image has to be written back. Otherwise a dirty page is stolen, see
+     * {@link #stealPage}. The replacement policy picks which one.
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for proj1
-        int numDirtyPages = 0;
-        for(PageId pageId : pageIdPageHashMap.keySet()){
-            HeapPage heapPage= (HeapPage) pageIdPageHashMap.get(pageId);
-            if(heapPage.isDirty() != null){
-                numDirtyPages++;
+        PageId victim;
+        while ((victim = replacementPolicy.chooseVictim(cleanPages)) != null) {
+            if (removeCleanPage(victim)) {
+                return;
             }
         }
-
-        if(numDirtyPages == maxNumPages){
-            throw new DbException("");
+        while ((victim = replacementPolicy.chooseVictim(stealablePages)) != null) {
+            if (stealPage(victim)) {
+                return;
+            }
         }
+        throw new DbException("all pages in the buffer pool have pending deletes of several transactions");
+    }
 
-        int value = -1;
-        PageId pageIdToBeRemoved = null;
-        for (PageId pageId : recentlyUsed.keySet()) {
-            int tempValue = recentlyUsed.get(pageId);
-            if (tempValue > value) {
-                value = tempValue;
-                pageIdToBeRemoved = pageId;
-                if (pageIdPageHashMap.get(pageId).isDirty() == null) {
-                    try {
-                        flushPage(pageIdToBeRemoved);
-                        recentlyUsed.remove(pageIdToBeRemoved);
-                        pageIdPageHashMap.remove(pageIdToBeRemoved);
-                        break;
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    /**
+     * Returns true if a cached page is dirty and may be stolen. Pages that
+     * other transactions than the one that dirtied them have deletes
+     * pending on are not, since they have to stay cached until those
+     * complete. The caller holds pendingDeletes.
+     */
+    private boolean canSteal(PageId pid) {
+        Page page = pageIdPageHashMap.get(pid);
+        if (page == null || page.isDirty() == null) {
+            return false;
+        }
+        List<PendingDelete> deletes = pendingDeletes.get(pid);
+        if (deletes != null) {
+            for (PendingDelete d : deletes) {
+                if (d.tid != page.isDirty()) {
+                    return false;
                 }
             }
         }
+        return true;
+    }
 
+    /**
+     * Evicts a page with uncommitted changes. They are logged against the
+     * page's committed image, and the log forced, before the page is
+     * written, so that an abort or recovery can roll them back. The
+     * committed image is kept until the transaction completes, for
+     * snapshots and for when the page is read in again.
+     *
+     * @return false if the page may not be stolen any more, see canSteal()
+     */
+    private synchronized boolean stealPage(PageId pid) throws DbException {
+        LogFile log = Database.getLogFile();
+        ReentrantLock lock = pageWriteLock(pid);
+        lock.lock();
+        try {
+            synchronized (pendingDeletes) {
+                if (!canSteal(pid)) {
+                    // another transaction deleted from it meanwhile
+                    return false;
+                }
+                Page page = pageIdPageHashMap.get(pid);
+                TransactionId dirtier = page.isDirty();
+                Page committed = page.getBeforeImage();
+                log.logWrite(dirtier, committed, page);
+                log.flushPage(pid);
+                Database.getCatalog().getDbFile(pid.getTableId()).writePage(page);
+                log.pageWritten(pid, log.getCurrentLsn());
 
+                stolenPages.put(pid, new StolenPage(dirtier, committed));
+                Set<PageId> pids = stolenPagesOf.get(dirtier);
+                if (pids == null) {
+                    pids = new HashSet<>();
+                    stolenPagesOf.put(dirtier, pids);
+                }
+                pids.add(pid);
+                pageIdPageHashMap.remove(pid);
+                replacementPolicy.pageRemoved(pid);
+                steals++;
+                return true;
+            }
+        } catch (IOException e) {
+            throw new DbException("could not steal " + pid + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    /** @return the number of pages evicted with uncommitted changes so far */
+    public synchronized long getStealCount() {
+        return steals;
     }
 
-    private void updateRecentlyUsed(){
-        if(!recentlyUsed.isEmpty()) {
-            for (PageId pageId : recentlyUsed.keySet()) {
-                int value = recentlyUsed.get(pageId);
-                value++;
-                recentlyUsed.put(pageId, value);
+    /**
+     * Drops a clean page from the pool. Its committed image is written
+     * first if it may not be on disk yet, as under NO FORCE; after that
+     * whatever was logged for it is on disk, so it leaves the log's dirty
+     * page table.
+     *
+     * @return false if a delete dirtied the page meanwhile, so it was kept
+     */
+    private synchronized boolean removeCleanPage(PageId pid) throws DbException {
+        try {
+            writeCommittedPage(pid);
+        } catch (IOException e) {
+            throw new DbException("could not write back " + pid + ": " + e.getMessage());
+        }
+        synchronized (pendingDeletes) {
+            // deletes only need the record lock, and dirty the page under pendingDeletes
+            Page page = pageIdPageHashMap.get(pid);
+            if (page != null && page.isDirty() != null) {
+                return false;
             }
+            pageIdPageHashMap.remove(pid);
         }
+        replacementPolicy.pageRemoved(pid);
+        LogFile log = Database.getLogFile();
+        log.pageWritten(pid, log.getCurrentLsn());
+        return true;
     }
 
 }
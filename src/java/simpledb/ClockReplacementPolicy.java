@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK (second chance) page replacement.
+ * <p>
+ * Every cached page owns a frame with a reference bit. A hit only sets the
+ * bit of the page's frame, which is O(1) and lock free. To find a victim the
+ * clock hand sweeps the frames, clearing set bits and stopping at the first
+ * evictable page whose bit is already clear, so eviction is amortized O(1)
+ * no matter how large the pool is.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private final ConcurrentHashMap<PageId, Integer> frameOf;
+    private final ArrayDeque<Integer> freeFrames;
+    private volatile PageId[] frames;
+    private volatile AtomicIntegerArray referenced;
+    private int hand;
+
+    /**
+     * @param capacity the number of frames to start with; this grows if the
+     *                 BufferPool ever caches more pages than that
+     */
+    public ClockReplacementPolicy(int capacity) {
+        capacity = Math.max(capacity, 1);
+        frameOf = new ConcurrentHashMap<>(capacity * 2);
+        freeFrames = new ArrayDeque<>(capacity);
+        frames = new PageId[capacity];
+        referenced = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            freeFrames.add(i);
+        }
+        hand = 0;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            if (freeFrames.isEmpty()) {
+                grow();
+            }
+            frame = freeFrames.poll();
+            frames[frame] = pid;
+            frameOf.put(pid, frame);
+        }
+        referenced.set(frame, 1);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        AtomicIntegerArray bits = referenced;
+        // the frame may belong to an array that grow() is replacing; losing a
+        // single reference bit is harmless
+        if (frame != null && frame < bits.length()) {
+            bits.set(frame, 1);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            referenced.set(frame, 0);
+            freeFrames.push(frame);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        // two full turns: the first one may only be clearing reference bits
+        int steps = 2 * frames.length;
+        for (int i = 0; i < steps; i++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            PageId pid = frames[frame];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced.getAndSet(frame, 0) == 1) {
+                continue;
+            }
+            if (evictable.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void grow() {
+        int size = frames.length;
+        PageId[] newFrames = new PageId[size * 2];
+        AtomicIntegerArray newReferenced = new AtomicIntegerArray(size * 2);
+        System.arraycopy(frames, 0, newFrames, 0, size);
+        for (int i = 0; i < size; i++) {
+            newReferenced.set(i, referenced.get(i));
+        }
+        for (int i = size; i < size * 2; i++) {
+            freeFrames.add(i);
+        }
+        frames = newFrames;
+        referenced = newReferenced;
+    }
+}
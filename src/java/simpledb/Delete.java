@@ -39,6 +39,7 @@ public class Delete extends Operator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        scanForUpdate(child);
         child.open();
         super.open();
     }
@@ -65,29 +66,35 @@ public class Delete extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
+        // aborts and errors propagate so the caller can roll the transaction back
         Tuple tuple = new Tuple(tupleDesc);
-        try {
-            int count = 0;
-            if(done){
-                return null;
-            }else{
-                try{
-                    done = true;
-                    while (child.hasNext()) {
-                        Tuple tuple2 = child.next();
-                        Database.getBufferPool().deleteTuple(tid, tuple2);
-                        count++;
-                    }
-                    tuple.setField(0, new IntField(count));
-                    return tuple;
-                }catch (Exception e){
-                    e.printStackTrace();
-                }
+        int count = 0;
+        if(done){
+            return null;
+        }
+        done = true;
+        while (child.hasNext()) {
+            Tuple tuple2 = child.next();
+            Database.getBufferPool().deleteTuple(tid, tuple2);
+            count++;
+        }
+        tuple.setField(0, new IntField(count));
+        return tuple;
+    }
+
+    /**
+     * Makes the scans below it lock pages for writing up front, rather than
+     * upgrading a read lock once a tuple of the page is deleted, which two
+     * Deletes reading the same page would deadlock on.
+     */
+    private static void scanForUpdate(DbIterator it) {
+        if (it instanceof SeqScan) {
+            ((SeqScan) it).setForUpdate(true);
+        } else if (it instanceof Operator) {
+            for (DbIterator child : ((Operator) it).getChildren()) {
+                scanForUpdate(child);
             }
-        } catch (Exception e){
-            e.printStackTrace();
         }
-        return null;
     }
 
     @Override
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one free
+ * slot, so inserts can go straight to a page with room instead of reading
+ * every page of the table. It is kept in a sidecar file next to the heap
+ * file holding one bit per page.
+ * <p>
+ * The map is only a hint. HeapFile checks a candidate page before inserting
+ * into it and marks the page full if it has no room after all. Pages with no
+ * bit in the sidecar file are assumed to have room, which is why the map
+ * stores a set bit for each page known to be full rather than for each page
+ * with room. A sidecar file that is older than the heap file, or that has
+ * bits for more pages than the heap file has, may not match the pages on
+ * disk, e.g. after a crash between writing a page and the sidecar; it is
+ * cleared when the map is opened, so that every page counts as having room.
+ * Closing the map marks the sidecar as current again.
+ * <p>
+ * Two bitmaps are kept. The in-memory one follows the pages as they are
+ * changed in the BufferPool. The on-disk one follows the pages as they were
+ * last written to the heap file, and is what the sidecar file gets, so the
+ * sidecar only calls a page full if the page on disk is full. Writing a page
+ * only changes the on-disk bitmap: the page in the BufferPool may have room
+ * the written image does not, e.g. from deletes that have not committed.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    private final File sidecar;
+    private final RandomAccessFile file;
+    private final BitSet full;
+    private final BitSet fullOnDisk;
+
+    /**
+     * @return the sidecar file holding the free space map of a heap file
+     */
+    public static File sidecarFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Opens (or creates) the free space map stored in the given file,
+     * clearing it if it is stale.
+     *
+     * @param sidecar the file holding the map
+     * @param heapFile the heap file the map is for
+     * @param numPages the number of pages in the heap file; pages past the
+     *            end of the stored map are assumed to have room
+     */
+    public FreeSpaceMap(File sidecar, File heapFile, int numPages) throws IOException {
+        this.sidecar = sidecar;
+        boolean stale = sidecar.lastModified() < heapFile.lastModified()
+            || sidecar.length() > (numPages + 7) / 8;
+        this.file = new RandomAccessFile(sidecar, "rw");
+        if (stale) {
+            file.setLength(0);
+        }
+        byte[] bits = new byte[(int) Math.min(file.length(), (numPages + 7) / 8)];
+        file.readFully(bits);
+        this.fullOnDisk = BitSet.valueOf(bits);
+        // ignore whatever the last byte says about pages that do not exist
+        fullOnDisk.clear(numPages, Math.max(numPages, bits.length * 8));
+        this.full = (BitSet) fullOnDisk.clone();
+    }
+
+    /**
+     * @return the number of the first page at or after from that may have a
+     *         free slot, or -1 if no page before numPages does
+     */
+    public synchronized int nextCandidate(int from, int numPages) {
+        int pgNo = full.nextClearBit(from);
+        return pgNo < numPages ? pgNo : -1;
+    }
+
+    /**
+     * Records whether a page in the BufferPool has a free slot.
+     */
+    public synchronized void update(int pgNo, boolean hasRoom) {
+        full.set(pgNo, !hasRoom);
+    }
+
+    /**
+     * Records whether a page just written to the heap file has a free slot,
+     * and stores the change in the sidecar file.
+     */
+    public synchronized void pageWritten(int pgNo, boolean hasRoom) throws IOException {
+        if (fullOnDisk.get(pgNo) == !hasRoom) {
+            return;
+        }
+        fullOnDisk.set(pgNo, !hasRoom);
+        int b = pgNo / 8;
+        byte[] bits = fullOnDisk.get(b * 8, b * 8 + 8).toByteArray();
+        file.seek(b);
+        file.write(bits.length > 0 ? bits[0] : 0);
+    }
+
+    /**
+     * Closes the sidecar file, and marks it as matching the heap file as it
+     * is now. Call it after the last page has been written.
+     */
+    public synchronized void close() throws IOException {
+        file.close();
+        sidecar.setLastModified(System.currentTimeMillis());
+    }
+}
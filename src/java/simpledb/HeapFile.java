@@ -1,6 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -18,6 +22,11 @@ public class HeapFile implements DbFile {
     private File file;
     private TupleDesc td;
     private TransactionId tid;
+    private transient FileChannel channel;
+    private boolean memoryMapped;
+    private transient MappedByteBuffer mapping;
+    private transient int mappedPages;
+    private transient FreeSpaceMap freeSpaceMap;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -27,8 +36,29 @@ public class HeapFile implements DbFile {
      */
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param memoryMapped if true, pages are read by parsing them straight
+     *            out of a read-only memory mapping of the file instead of
+     *            copying them into a buffer with a read system call. Writes
+     *            still go through the file channel. Meant for large tables
+     *            that are mostly scanned and rarely updated.
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         this.file = f;
         this.td = td;
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -65,22 +95,107 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * Returns the channel all page I/O on this file goes through, opening it
+     * on first use. Positional reads and writes on a FileChannel do not move
+     * a shared file pointer, so one channel serves any number of threads.
+     * The channel is reopened if it was closed, e.g. because a thread was
+     * interrupted in the middle of an I/O.
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            String mode = file.canWrite() ? "rw" : "r";
+            channel = new RandomAccessFile(file, mode).getChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * Closes the file channel backing this HeapFile. It is reopened if the
+     * file is used again.
+     */
+    public synchronized void close() throws IOException {
+        mapping = null;
+        mappedPages = 0;
+        if (freeSpaceMap != null) {
+            freeSpaceMap.close();
+            freeSpaceMap = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Returns the map of pages with free slots, loading it from the sidecar
+     * file next to this file on first use.
+     */
+    private synchronized FreeSpaceMap freeSpaceMap() throws IOException {
+        if (freeSpaceMap == null) {
+            freeSpaceMap = new FreeSpaceMap(FreeSpaceMap.sidecarFor(file), file, numPages());
+        }
+        return freeSpaceMap;
+    }
+
+    /**
+     * Updates the free space map with the current state of a page, if the
+     * map has been loaded. Called for pages read in and for pages whose
+     * changes are rolled back.
+     */
+    synchronized void noteFreeSpace(HeapPage page) {
+        if (freeSpaceMap != null) {
+            freeSpaceMap.update(page.getId().pageNumber(), page.getNumEmptySlots() > 0);
+        }
+    }
+
+    /**
+     * Returns a buffer over the given page in the memory mapping of this
+     * file, remapping the file if it has grown past the current mapping.
+     *
+     * @return the page's bytes, or null if the page is past the end of the
+     *         file or the file is too large to map in one piece
+     */
+    private synchronized ByteBuffer mappedPage(int pgNo) throws IOException {
+        if (mapping == null || pgNo >= mappedPages) {
+            long pages = numPages();
+            if (pgNo >= pages || pages * BufferPool.PAGE_SIZE > Integer.MAX_VALUE) {
+                return null;
+            }
+            mapping = channel().map(FileChannel.MapMode.READ_ONLY, 0, pages * BufferPool.PAGE_SIZE);
+            mappedPages = (int) pages;
+        }
+        ByteBuffer page = mapping.duplicate();
+        page.position(pgNo * BufferPool.PAGE_SIZE);
+        page.limit(page.position() + BufferPool.PAGE_SIZE);
+        return page.slice();
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         try {
-            /*
-             random access file. Create a data (byte) array of size = page_size.
-             put the pointer to the beginning of the page. get page number using size of the page from buffer pool.
-             read the data and put it in the read format of random access file.
-             return the page.
-             */
-            RandomAccessFile pageFile = new RandomAccessFile(this.file, "r");
+            if (memoryMapped) {
+                ByteBuffer mapped = mappedPage(pid.pageNumber());
+                if (mapped != null) {
+                    HeapPage page = new HeapPage((HeapPageId) pid, mapped);
+                    noteFreeSpace(page);
+                    return page;
+                }
+            }
             byte[] pageData = new byte[BufferPool.PAGE_SIZE];
-            pageFile.seek(BufferPool.PAGE_SIZE * pid.pageNumber());
-            pageFile.read(pageData, 0, BufferPool.PAGE_SIZE);
-            pageFile.close();
-            return new HeapPage((HeapPageId) pid, pageData);
+            ByteBuffer buffer = ByteBuffer.wrap(pageData);
+            long offset = (long) BufferPool.PAGE_SIZE * pid.pageNumber();
+            try {
+                readFully(buffer, offset);
+            } catch (ClosedChannelException e) {
+                // another thread's interrupt closed the shared channel under us
+                buffer.clear();
+                readFully(buffer, offset);
+            }
+            HeapPage page = new HeapPage((HeapPageId) pid, pageData);
+            noteFreeSpace(page);
+            return page;
         } catch (Exception e){
             return null;
         }
@@ -91,15 +206,31 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for proj1
-        try{
-            PageId pid = page.getId();
-
-            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
-            raf.seek(pid.pageNumber() * BufferPool.PAGE_SIZE);
-            raf.write(page.getPageData(), 0, BufferPool.PAGE_SIZE);
-            raf.close();
-        }catch (Exception e){
-            e.printStackTrace();
+        ByteBuffer buffer = ByteBuffer.wrap(page.getPageData(), 0, BufferPool.PAGE_SIZE);
+        long offset = (long) BufferPool.PAGE_SIZE * page.getId().pageNumber();
+        try {
+            writeFully(buffer, offset);
+        } catch (ClosedChannelException e) {
+            // another thread's interrupt closed the shared channel under us
+            buffer.rewind();
+            writeFully(buffer, offset);
+        }
+        freeSpaceMap().pageWritten(page.getId().pageNumber(), ((HeapPage) page).getNumEmptySlots() > 0);
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        FileChannel ch = channel();
+        while (buffer.hasRemaining()) {
+            if (ch.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        FileChannel ch = channel();
+        while (buffer.hasRemaining()) {
+            ch.write(buffer, offset + buffer.position());
         }
     }
 
@@ -115,65 +246,104 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        ArrayList<Page> pages = new ArrayList<>();
-        try{
-            if(this.getEmptyPages(tid).isEmpty()){
-                HeapPageId heapPageId = new HeapPageId(this.getId(), this.numPages());
-                HeapPage heapPage = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
-                heapPage.insertTuple(t);
-                this.writePage(heapPage);
-                pages.add(heapPage);
-            }else{
-                Page page = this.getEmptyPages(tid).get(0);
-                HeapPage heapPage = (HeapPage) page;
-                heapPage.insertTuple(t);
-                pages.add(heapPage);
+        // not necessary for proj1
+        // the free space map points at pages that may have room; check each
+        // candidate under a read lock, and only lock the page we insert into
+        // for writing. Pages this insert only looked at are unlocked again.
+        BufferPool bufferPool = Database.getBufferPool();
+        FreeSpaceMap fsm = freeSpaceMap();
+        int pgNo = 0;
+        while (true) {
+            pgNo = fsm.nextCandidate(pgNo, numPages());
+            if (pgNo < 0) {
+                pgNo = appendEmptyPage();
+            }
+            HeapPageId pid = new HeapPageId(getId(), pgNo);
+            boolean lockedBefore = bufferPool.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+            if (page.getNumEmptySlots() > 0) {
+                if (!lockedBefore) {
+                    // two inserts holding the read lock would deadlock
+                    // upgrading it, so let go of it and queue for the write lock
+                    bufferPool.releasePage(tid, pid);
+                }
+                page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+                if (page.getNumEmptySlots() > 0) {
+                    page.insertTuple(t);
+                    fsm.update(pgNo, page.getNumEmptySlots() > 0);
+                    ArrayList<Page> pages = new ArrayList<>();
+                    pages.add(page);
+                    return pages;
+                }
+            }
+            fsm.update(pgNo, false);
+            if (!lockedBefore) {
+                bufferPool.releasePage(tid, pid);
             }
-        }catch (Exception e){
-            e.printStackTrace();
+            pgNo++;
         }
-        return pages;
-        // not necessary for proj1
+    }
 
+    /**
+     * Adds an empty page to the end of this file.
+     *
+     * @return the number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        int pgNo = numPages();
+        writePage(new HeapPage(new HeapPageId(getId(), pgNo), HeapPage.createEmptyPageData()));
+        return pgNo;
     }
 
     // see DbFile.java for javadocs
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
+        // only the tuple's record is locked, other rows of the page may be
+        // deleted by other transactions at the same time
         RecordId rid = t.getRecordId();
-        PageId pageId = rid.getPageId();
-        Page page = Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-        HeapPage heapPage = (HeapPage) page;
-        heapPage.deleteTuple(t);
-        return Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPageForRecord(tid, rid, Permissions.READ_WRITE);
+        deleteTuple(heapPage, t);
+        return heapPage;
         // not necessary for proj1
     }
 
+    /**
+     * Deletes a tuple from a page of this file that the caller has locked
+     * and fetched already.
+     */
+    void deleteTuple(HeapPage page, Tuple t) throws DbException {
+        page.deleteTuple(t);
+        noteFreeSpace(page);
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileReaderIterator(tid, this);
+        return iterator(tid, Database.getBufferPool().useScanRing(numPages()));
     }
 
-    public ArrayList<Page> getEmptyPages(TransactionId tid) throws DbException{
-        ArrayList<Page> pages = new ArrayList<>();
-        try{
-            int tableId = this.getId();
-            for(int i=0; i<this.numPages(); i++){
-                HeapPageId hpid = new HeapPageId(tableId, i);
-                Page page = Database.getBufferPool().getPage(tid, hpid, Permissions.READ_ONLY);
-                if(((HeapPage)page).getNumEmptySlots()!=0){
-                    pages.add(page);
-                }
-            }
-        } catch (TransactionAbortedException e) {
-            e.printStackTrace();
-        }catch (Exception e){
-            e.printStackTrace();
-        }
-        return pages;
+    /**
+     * Returns an iterator over all the tuples stored in this HeapFile.
+     *
+     * @param bulkRead if true, pages that are not already in the buffer pool
+     *                 are read through a private {@link ScanRing} instead of
+     *                 being cached in the pool. {@link #iterator(TransactionId)}
+     *                 turns this on for files that are large compared to
+     *                 the pool.
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean bulkRead) {
+        return new HeapFileReaderIterator(tid, this, bulkRead);
     }
 
+    /**
+     * Returns an iterator over all the tuples stored in this HeapFile that
+     * locks each page for writing as it reads it, for a scan whose tuples
+     * are about to be deleted. Pages are always cached in the pool, since
+     * the scan's transaction goes on to change them.
+     */
+    public DbFileIterator iteratorForUpdate(TransactionId tid) {
+        return new HeapFileReaderIterator(tid, this, false, Permissions.READ_WRITE);
+    }
 }
 
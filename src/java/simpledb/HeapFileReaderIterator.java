@@ -10,18 +10,42 @@ public class HeapFileReaderIterator implements DbFileIterator {
     private TransactionId tid;
     private int pgNum;
     private  HeapFile f;
+    private boolean bulkRead;
+    private Permissions perm;
+    private ScanRing ring;
+    private int readAheadTo;
 
 
     public HeapFileReaderIterator(TransactionId tid, HeapFile f) {
+        this(tid, f, false);
+    }
+
+    /**
+     * @param bulkRead read pages missing from the buffer pool through a
+     *                 private ScanRing instead of caching them in the pool
+     */
+    public HeapFileReaderIterator(TransactionId tid, HeapFile f, boolean bulkRead) {
+        this(tid, f, bulkRead, Permissions.READ_ONLY);
+    }
+
+    /**
+     * @param perm the permissions to lock each page with as it is read
+     */
+    public HeapFileReaderIterator(TransactionId tid, HeapFile f, boolean bulkRead, Permissions perm) {
         this.tid = tid;
         this.f=f;
-
+        this.bulkRead = bulkRead;
+        this.perm = perm;
     }
 
     @Override
     public void open() throws DbException, TransactionAbortedException {
         pgNum = 0;
-        i = getTupleLsFrPg(pgNum).iterator();
+        readAheadTo = 0;
+        if(bulkRead){
+            ring = Database.getBufferPool().newScanRing();
+        }
+        i = pageIterator(pgNum);
     }
 
     @Override
@@ -29,63 +53,60 @@ public class HeapFileReaderIterator implements DbFileIterator {
         if( i == null){
             return false;
         }
-        if(i.hasNext()){
-            return true;
-        } else if (pgNum < f.numPages()-1){
-            // if we have more pages to iterate
-            if(getTupleLsFrPg(pgNum + 1).size() != 0){
-                return true;
-            } else {
-                return false;
-            }
-        } else {
-            return false;
+        // move on to the next page only once this one is used up, skipping
+        // empty pages
+        while(!i.hasNext() && pgNum < f.numPages()-1){
+            pgNum ++;
+            i = pageIterator(pgNum);
         }
+        return i.hasNext();
     }
 
     @Override
     public Tuple next() throws DbException, TransactionAbortedException,
             NoSuchElementException {
-        //Skip null tuple
-        if(i == null){
-            throw new NoSuchElementException("tuple is null");
-        }
-
-        if(i.hasNext()){
-            //there are tuples available on page
-            Tuple t = i.next();
-            return t;
-        } else if(!i.hasNext() && pgNum < f.numPages()-1) {
-            //tuples are on next page
-            pgNum ++;
-            i = getTupleLsFrPg(pgNum).iterator();
-            if (i.hasNext())
-                return i.next();
-            else {
-                throw new NoSuchElementException("No more Tuples");
-            }
-
-        } else {
+        if(!hasNext()){
             // no more tuples on current page and no more pages in file
             throw new NoSuchElementException("No more Tuples");
         }
-
+        return i.next();
     }
-    // Returns a list of tuples from page
-    private List<Tuple> getTupleLsFrPg(int pgNum) throws TransactionAbortedException, DbException{
+
+    /**
+     * @return an iterator over the tuples of the given page, which decodes
+     *         them as it reaches them
+     */
+    private Iterator<Tuple> pageIterator(int pgNum) throws TransactionAbortedException, DbException{
 
         PageId pageId = new HeapPageId(f.getId(), pgNum);
-        Page page = Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+        Page page;
+        if(ring != null){
+            page = Database.getBufferPool().getPage(tid, pageId, perm, ring);
+        } else {
+            page = Database.getBufferPool().getPage(tid, pageId, perm);
+        }
 
-        List<Tuple> tupleList = new ArrayList<Tuple>();
+        readAhead(pgNum);
 
-        // get all tuples from the first page in the file
-        HeapPage hp = (HeapPage)page;
-        Iterator<Tuple> itr = hp.iterator();
-        while(itr.hasNext()){
-            tupleList.add(itr.next());
+        return ((HeapPage)page).iterator();
+    }
+
+    /**
+     * Asks the buffer pool to start reading the pages after pgNum in the
+     * background, so they are cached by the time the scan gets to them.
+     */
+    private void readAhead(int pgNum) {
+        BufferPool bufferPool = Database.getBufferPool();
+        int pages = bufferPool.getReadAheadPages();
+        if(ring != null){
+            // never read far enough ahead to recycle the page we are on
+            pages = Math.min(pages, ring.size() - 2);
+        }
+        int last = Math.min(f.numPages() - 1, pgNum + pages);
+        for(int next = Math.max(readAheadTo, pgNum) + 1; next <= last; next++){
+            bufferPool.prefetchPage(new HeapPageId(f.getId(), next), ring);
         }
-        return  tupleList;
+        readAheadTo = Math.max(readAheadTo, last);
     }
 
     @Override
@@ -98,6 +119,7 @@ public class HeapFileReaderIterator implements DbFileIterator {
     @Override
     public void close() {
         i = null;
+        ring = null;
 
     }
 
@@ -1,8 +1,9 @@
 package simpledb;
 
-import java.math.BigInteger;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -17,11 +18,33 @@ public class HeapPage implements Page {
     HeapPageId pid;
     TupleDesc td;
     byte header[];
-    Tuple tuples[];
+    /**
+     * tuples decoded so far; a used slot whose entry is null is decoded on
+     * first access. Atomic because readers of the page decode into it
+     * concurrently.
+     */
+    AtomicReferenceArray<Tuple> tuples;
     int numSlots;
     private TransactionId tid;
 
-    byte[] oldData;
+    private final int tupleSize;
+    private final int[] fieldOffsets;
+    /**
+     * The whole page as read from disk, plus any later changes to the tuple
+     * slots. Until the page is first modified this may be the caller's
+     * array or a region of a memory mapped file, which are never written;
+     * see {@link #writableData}.
+     */
+    private ByteBuffer data;
+    private boolean dataIsPrivate;
+    /** the last committed contents; volatile because snapshot readers read it without locks */
+    private volatile ByteBuffer oldData;
+    /** the before image shared by snapshot readers, or null until one asks for it */
+    private volatile SharedImage sharedBeforeImage;
+    /** number of unused slots, kept up to date by markSlotUsed */
+    private int numEmptySlots;
+    /** no slot below this one is free */
+    private int firstFreeHint;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -40,27 +63,40 @@ public class HeapPage implements Page {
      * @see BufferPool#PAGE_SIZE
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the bytes between the position and the limit of
+     * the given buffer, in the format described in
+     * {@link #HeapPage(HeapPageId, byte[])}. The buffer is parsed in place,
+     * so a HeapFile can hand in a region of a memory mapped file without
+     * copying it first. The page reads through the buffer, so its contents
+     * must not change until the page is first modified, when the page takes
+     * a private copy.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.remaining() < BufferPool.PAGE_SIZE)
+            throw new IOException("short page: " + data.remaining() + " bytes");
 
-        // allocate and read the header slots of this page
+        // only the header is read up front; tuples are decoded when asked for
+        this.data = data.slice();
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++){
-                tuples[i] = readNextTuple(dis,i);
-            }
-
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        int usedSlots = 0;
+        for (int i=0; i<header.length; i++) {
+            header[i] = this.data.get(i);
+            usedSlots += Integer.bitCount(header[i] & slotMask(i));
         }
-        dis.close();
+        numEmptySlots = numSlots - usedSlots;
+        firstFreeHint = 0;
+        tuples = new AtomicReferenceArray<Tuple>(numSlots);
 
         setBeforeImage();
     }
@@ -71,7 +107,7 @@ public class HeapPage implements Page {
     private int getNumTuples() {        
         // some code goes here
 
-        return (int)Math.floor((BufferPool.PAGE_SIZE*8)/(td.getSize()*8+1));
+        return (int)Math.floor((BufferPool.PAGE_SIZE*8)/(tupleSize*8+1));
 
     }
 
@@ -88,8 +124,12 @@ public class HeapPage implements Page {
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
+        return imageOf(oldData);
+    }
+
+    private HeapPage imageOf(ByteBuffer before) {
         try {
-            return new HeapPage(pid,oldData);
+            return new HeapPage(pid,before.duplicate());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -98,8 +138,53 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /** A fully decoded before image, and the before image buffer it was made from. */
+    private static class SharedImage {
+        final ByteBuffer source;
+        final HeapPage page;
+
+        SharedImage(ByteBuffer source, HeapPage page) {
+            this.source = source;
+            this.page = page;
+        }
+    }
+
+    /**
+     * Returns the before image as one page for all callers until the before
+     * image changes. All of its tuples are decoded before it is handed out,
+     * so as long as nobody modifies it, it can be read from several threads
+     * without locking, and snapshot scans do not decode each page afresh.
+     */
+    public HeapPage getSharedBeforeImage() {
+        ByteBuffer before = oldData;
+        SharedImage image = sharedBeforeImage;
+        if (image == null || image.source != before) {
+            HeapPage page = imageOf(before);
+            for (int i=0; i<page.numSlots; i++) {
+                page.tuple(i);
+            }
+            image = new SharedImage(before, page);
+            sharedBeforeImage = image;
+        }
+        return image.page;
+    }
+
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        if (dataIsPrivate) {
+            oldData = ByteBuffer.wrap(getPageData());
+        } else {
+            // data is never written in place, so it can double as the before image
+            oldData = data;
+        }
+    }
+
+    /**
+     * Sets the before image to the given page contents rather than to the
+     * current ones, for a page that still holds uncommitted changes when
+     * other changes to it are committed.
+     */
+    void setBeforeImage(byte[] pageData) {
+        oldData = ByteBuffer.wrap(pageData);
     }
 
     /**
@@ -111,39 +196,66 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the given slot's first byte in the page
+     */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * tupleSize;
+    }
+
+    /**
+     * Decodes field j of the tuple in the given slot straight from the page
+     * bytes, without materializing the tuple.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private Field readField(int slotId, int j) {
+        return td.getFieldType(j).parse(data, slotOffset(slotId) + fieldOffsets[j]);
+    }
+
+    /**
+     * Returns the tuple in the given slot, decoding it from the page bytes
+     * the first time it is asked for.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    private Tuple tuple(int slotId) {
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        Tuple t = tuples.get(slotId);
+        if (t == null) {
+            // decode into a local and publish it only once it is complete;
+            // if another reader got there first, use its tuple
+            t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, slotId));
+            for (int j=0; j<fieldOffsets.length; j++) {
+                t.setField(j, readField(slotId, j));
+            }
+            if (!tuples.compareAndSet(slotId, null, t)) {
+                t = tuples.get(slotId);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
-
         return t;
     }
 
+    /**
+     * Returns the page bytes for modification, first copying them if they
+     * are still shared with the caller that created this page, the before
+     * image or a memory mapped file.
+     */
+    private ByteBuffer writableData() {
+        if (!dataIsPrivate) {
+            byte[] copy = new byte[BufferPool.PAGE_SIZE];
+            data.duplicate().get(copy);
+            if (oldData == data && data.isDirect()) {
+                // a mapped region changes when the page is flushed, so the
+                // before image needs its own copy
+                oldData = ByteBuffer.wrap(copy.clone());
+            }
+            data = ByteBuffer.wrap(copy);
+            dataIsPrivate = true;
+        }
+        return data;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -156,64 +268,10 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] pageData = new byte[BufferPool.PAGE_SIZE];
+        data.duplicate().get(pageData);
+        System.arraycopy(header, 0, pageData, 0, header.length);
+        return pageData;
     }
 
     /**
@@ -243,13 +301,18 @@ public class HeapPage implements Page {
         RecordId rid = t.getRecordId();
         int tupleNo = rid.tupleno();
 
-        if(rid.getPageId() != this.pid){
+        if(!this.pid.equals(rid.getPageId())){
             throw new DbException("");
         }
         if(!isSlotUsed(tupleNo)){
             throw new DbException("");
         }
-        tuples[tupleNo] = null;
+        ByteBuffer buf = writableData();
+        int offset = slotOffset(tupleNo);
+        for (int j=0; j<tupleSize; j++) {
+            buf.put(offset + j, (byte) 0);
+        }
+        tuples.set(tupleNo, null);
         markSlotUsed(tupleNo, false);
     }
 
@@ -272,22 +335,69 @@ public class HeapPage implements Page {
         }
 
         int i = this.nextEmptySlotNum();
-        tuples[i] = t;
-        this.markSlotUsed(i, true);
+        writeTuple(i, t);
         RecordId rid = new RecordId(this.pid, i);
         t.setRecordId(rid);
     }
 
+    /**
+     * Puts a deleted tuple back into the slot it was deleted from, to roll
+     * back the delete. Used when other transactions have changed the page
+     * since, so the before image cannot be restored.
+     *
+     * @param rid the record id the tuple had before it was deleted
+     * @throws DbException if the slot is in use
+     */
+    public void restoreTuple(RecordId rid, Tuple t) throws DbException {
+        int tupleNo = rid.tupleno();
+        if (tupleNo < 0 || tupleNo >= numSlots || isSlotUsed(tupleNo)) {
+            throw new DbException("slot " + tupleNo + " cannot be restored");
+        }
+        writeTuple(tupleNo, t);
+        t.setRecordId(new RecordId(this.pid, tupleNo));
+    }
+
+    private void writeTuple(int i, Tuple t) throws DbException {
+        ByteBuffer slot = writableData().duplicate();
+        slot.position(slotOffset(i));
+        slot.limit(slotOffset(i) + tupleSize);
+        DataOutputStream dos = new DataOutputStream(new ByteBufferOutputStream(slot));
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e.getMessage());
+        }
+        tuples.set(i, t);
+        this.markSlotUsed(i, true);
+    }
+
 
     public int nextEmptySlotNum() throws DbException{
-        for (int i=0;i<header.length*8;i++){
-            if (!isSlotUsed(i))
-                return i;
+        // skip whole header bytes that are full, starting from the hint
+        for (int b = firstFreeHint >> 3; b < header.length; b++) {
+            int free = ~header[b] & slotMask(b);
+            if (free != 0) {
+                firstFreeHint = (b << 3) + Integer.numberOfTrailingZeros(free);
+                return firstFreeHint;
+            }
         }
+        firstFreeHint = numSlots;
         throw new DbException("no nextEmptySlotNum available");
 
     }
 
+    /**
+     * @return the bits of header byte b that correspond to slots on the
+     *         page; the last byte may have unused high bits
+     */
+    private int slotMask(int b) {
+        int slotsInByte = Math.min(8, numSlots - (b << 3));
+        return (1 << slotsInByte) - 1;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -316,12 +426,6 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int numEmptySlots = 0;
-        for(int i=0; i<numSlots; i++){
-            if(!isSlotUsed(i)){
-                numEmptySlots++;
-            }
-        }
         return numEmptySlots;
     }
 
@@ -330,17 +434,10 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) throws IllegalArgumentException{
         // some code goes here
-        if(i<0 || i>numSlots){
-            throw new IllegalArgumentException("");
+        if(i<0 || i>=numSlots){
+            throw new IllegalArgumentException("no slot " + i + " on a page of " + numSlots + " slots");
         }
-        int byteNumber = i/8;
-        int byteDiff = i%8;
-        if (byteNumber>=header.length){
-            throw new IllegalArgumentException("Invalid whichByte");
-        }
-        byte[] byteArray = new byte[] {header[byteNumber]};
-        BigInteger intRepByte = new BigInteger(byteArray);
-        return intRepByte.testBit(byteDiff);
+        return (header[i >> 3] & (1 << (i & 7))) != 0;
     }
 
     /**
@@ -349,20 +446,18 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        int byteNumber = i/8;
-        int byteOffset = i%8;
-
-        byte[] byteArray = new byte[] {header[byteNumber]};
-        BigInteger byteArrayRep = new BigInteger(byteArray);
+        if (isSlotUsed(i) == value) {
+            return;
+        }
+        int bit = 1 << (i & 7);
         if(value){
-            byteArrayRep = byteArrayRep.setBit(byteOffset);
+            header[i >> 3] |= bit;
+            numEmptySlots--;
         }else{
-            byteArrayRep = byteArrayRep.clearBit(byteOffset);
+            header[i >> 3] &= ~bit;
+            numEmptySlots++;
+            firstFreeHint = Math.min(firstFreeHint, i);
         }
-        byte [] changedbyteArContainsI = byteArrayRep.toByteArray();
-        byte changedByte=changedbyteArContainsI[changedbyteArContainsI.length-1];
-        header[byteNumber]=changedByte;
-
     }
 
     /**
@@ -371,20 +466,64 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        ArrayList<Tuple> tempTuples = new ArrayList<>();
-        for (Tuple tuple : tuples) {
-            if (tuple != null) {
-                tempTuples.add(tuple);
+        // tuples are decoded one at a time as the iterator reaches them
+        return new Iterator<Tuple>() {
+            private int slot = nextUsedSlot(0);
+
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = tuple(slot);
+                slot = nextUsedSlot(slot + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private int nextUsedSlot(int from) {
+        for (int b = from >> 3; b < header.length; b++) {
+            int used = header[b] & slotMask(b) & (-1 << (b == from >> 3 ? from & 7 : 0));
+            if (used != 0) {
+                return (b << 3) + Integer.numberOfTrailingZeros(used);
             }
         }
-        return tempTuples.iterator();
+        return numSlots;
     }
 
     public ArrayList<Tuple> getTuples(){
         ArrayList<Tuple> tuplesArr = new ArrayList<>();
-        Collections.addAll(tuplesArr, tuples);
+        for (int i=0; i<numSlots; i++) {
+            tuplesArr.add(tuple(i));
+        }
         return tuplesArr;
     }
 
-}
+    /**
+     * Writes into a ByteBuffer as an OutputStream, so Field.serialize can
+     * encode a tuple straight into its slot.
+     */
+    private static class ByteBufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
 
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+    }
+}
@@ -35,15 +35,15 @@ public class HeapPageId implements PageId {
     }
 
     /**
-     * @return a hash code for this page, represented by the concatenation of
-     *   the table number and the page number (needed if a PageId is used as a
-     *   key in a hash table in the BufferPool, for example.)
+     * @return a hash code for this page, combined from the table number and
+     *   the page number (needed if a PageId is used as a key in a hash table
+     *   in the BufferPool, for example.) Every buffer pool hit hashes the
+     *   page id a few times, so this only does arithmetic.
      * @see BufferPool
      */
     public int hashCode() {
         // some code goes here
-        Long longCode=Long.parseLong(String.valueOf(tableId)+ String.valueOf(pageNo));
-        return longCode.hashCode();
+        return 31 * tableId + pageNo;
     }
 
     /**
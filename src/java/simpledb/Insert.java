@@ -47,6 +47,8 @@ public class Insert extends Operator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        // declare the writes up front; the page locks find the table covered
+        Database.getBufferPool().lockTable(tid, tableId, LockMode.IX);
         child.open();
         super.open();
     }
@@ -77,29 +79,24 @@ public class Insert extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
+        // aborts and errors propagate so the caller can roll the transaction back
         Tuple tuple = new Tuple(td);
-        try{
-            int count = 0;
-            if(checked){
-                return null;
-            }else{
-                checked = true;
-                while (child.hasNext()){
-                    Tuple tuple2 = child.next();
-                    try{
-                        Database.getBufferPool().insertTuple(tid, tableId, tuple2);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    count++;
-                }
-                tuple.setField(0, new IntField(count));
-                return tuple;
+        int count = 0;
+        if(checked){
+            return null;
+        }
+        checked = true;
+        while (child.hasNext()){
+            Tuple tuple2 = child.next();
+            try{
+                Database.getBufferPool().insertTuple(tid, tableId, tuple2);
+            } catch (IOException e) {
+                throw new DbException("could not insert tuple: " + e.getMessage());
             }
-        }catch (Exception e){
-            e.printStackTrace();
+            count++;
         }
-        return null;
+        tuple.setField(0, new IntField(count));
+        return tuple;
     }
 
     @Override
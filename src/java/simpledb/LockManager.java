@@ -1,115 +1,849 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Multi-granularity locks for the BufferPool, on three levels: tables, pages
+ * and records. Every lock is held in one of the {@link LockMode}s.
+ * <p>
+ * Before a page is locked, its table is locked in the matching intention
+ * mode (IS for reading, IX for writing). Before a record is locked, both its
+ * table and its page are locked in the intention mode. So a transaction that
+ * deletes single rows holds IX on the page, which other row deleters also
+ * get, while readers of the whole page, which lock it in S, have to wait.
+ * A lock in S, SIX or X on a table or page covers reading everything below
+ * it, and X also covers writing, so no further locks are taken below it.
+ * <p>
+ * Once a transaction holds more than the escalation threshold of page and
+ * record locks on one table, the lock manager tries to trade them for a
+ * single S or X lock on the table. If another transaction's table lock is in
+ * the way it keeps taking the small locks and tries again on the next one;
+ * escalation never waits.
+ * <p>
+ * A request that conflicts with the current holders, or that would jump
+ * ahead of transactions already waiting, joins a FIFO queue for the object
+ * and parks on its own condition variable. Whenever locks are released the
+ * queue is granted from the front for as long as requests are compatible,
+ * and exactly those waiters are woken. Lock upgrades (by a transaction that
+ * already holds a weaker lock on the same object) go to the front of the
+ * queue.
+ * <p>
+ * Every time a request has to wait, the wait-for graph between transactions
+ * is built from the lock holders and queues and searched for a cycle through
+ * the new waiter. If there is one, a victim picked by the {@link
+ * VictimPolicy} among the transactions on the cycle is aborted: its waiting
+ * requests fail with a TransactionAbortedException, and the caller rolls it
+ * back, which releases its locks. A waiter that has not been granted its
+ * lock within the lock timeout is aborted as well, as a last resort.
+ * <p>
+ * Instead of detecting deadlocks, the lock manager can prevent them by only
+ * letting transactions wait in one direction of age, see {@link
+ * DeadlockMode}. Transaction ids are handed out in increasing order, so a
+ * smaller id means an older transaction. A transaction that is restarted
+ * after an abort gets a new id and is young again, so unlike textbook
+ * wound-wait and wait-die this does not guarantee that it gets through.
+ * A wounded transaction that holds the locks an older one waits for is only
+ * aborted when it next asks for a lock; if it commits first, that is fine too.
+ * <p>
+ * Asking again for a lock the transaction already holds, which is what
+ * every buffer pool hit does, is answered from a copy of the
+ * transaction's own locks without taking the latch.
+ * <p>
  * Created by mohit on 1/10/16.
  */
 public class LockManager {
-    HashMap<PageId, Set<TransactionId>> readOnly;
-    HashMap<PageId, TransactionId> writeOnly;
-    HashMap<TransactionId, Set<PageId>> sharedPages;
-    HashMap<TransactionId, Set<PageId>> exclusivePages;
+    /**
+     * Default time a transaction waits for a lock before it is aborted.
+     * Deadlocks are detected as they form, so this only matters for
+     * transactions that hold locks for very long.
+     */
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 5000;
+
+    /** Default number of page and record locks on one table after which a transaction locks the table instead. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 64;
+
+    /** How to pick the transaction to abort when a deadlock is found. */
+    public enum VictimPolicy {
+        /** abort the transaction that started last */
+        YOUNGEST,
+        /** abort the transaction holding the fewest locks, i.e. the one
+            that has probably done the least work; ties go to the youngest */
+        FEWEST_LOCKS
+    }
+
+    /** How deadlocks are dealt with. */
+    public enum DeadlockMode {
+        /** let requests wait and look for cycles in the wait-for graph */
+        DETECT,
+        /** an older requester aborts ("wounds") the younger transactions it
+            would wait for; a younger requester waits for older ones */
+        WOUND_WAIT,
+        /** an older requester waits for younger transactions; a younger
+            requester that would wait for an older one aborts ("dies") */
+        WAIT_DIE
+    }
+
+    /**
+     * The holders of each locked object and the mode each holds it in. Locked
+     * objects are tables (keyed by their Integer table id), pages (keyed by
+     * PageId) and records (keyed by RecordId).
+     */
+    private final HashMap<Object, HashMap<TransactionId, LockMode>> locks;
+    /** the objects each transaction holds a lock on */
+    private final HashMap<TransactionId, Set<Object>> lockedObjects;
+    /** the number of page and record locks each transaction holds on each table */
+    private final HashMap<TransactionId, HashMap<Integer, Integer>> lockCounts;
+    /** wait queues, keyed like locks */
+    private final HashMap<Object, LinkedList<LockRequest>> waiters;
+    /** the queued requests of each transaction, so they can be found without scanning every queue */
+    private final HashMap<TransactionId, LinkedList<LockRequest>> pending;
+    /** guards all of the maps above */
+    private final ReentrantLock latch;
+    /**
+     * The mode each transaction holds each of its locks in, like locks but
+     * by transaction, and readable without the latch; changed under the
+     * latch. Null transaction ids, which tests use, are left out.
+     */
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<Object, LockMode>> granted;
+    private volatile long lockTimeoutMillis = DEFAULT_LOCK_TIMEOUT_MILLIS;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private volatile VictimPolicy victimPolicy = VictimPolicy.YOUNGEST;
+    private volatile DeadlockMode deadlockMode = DeadlockMode.DETECT;
+    /** transactions wounded while holding locks; they abort on their next
+        request, which may not take the latch */
+    private final Set<TransactionId> wounded;
+    private long deadlocks;
+    private long escalations;
+
+    /** A transaction waiting in the queue of a table, page or record. */
+    private static class LockRequest {
+        final TransactionId tid;
+        final LockMode mode;
+        final Condition wakeup;
+        boolean granted;
+        boolean cancelled;
+
+        LockRequest(TransactionId tid, LockMode mode, Condition wakeup) {
+            this.tid = tid;
+            this.mode = mode;
+            this.wakeup = wakeup;
+        }
+    }
 
     public LockManager(){
-        readOnly = new HashMap<>();
-        writeOnly = new HashMap<>();
-        sharedPages = new HashMap<>();
-        exclusivePages = new HashMap<>();
+        locks = new HashMap<>();
+        lockedObjects = new HashMap<>();
+        lockCounts = new HashMap<>();
+        waiters = new HashMap<>();
+        pending = new HashMap<>();
+        wounded = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+        latch = new ReentrantLock();
+        granted = new ConcurrentHashMap<>();
     }
 
+    /**
+     * @return how long a transaction waits for a lock before it is aborted
+     */
+    public long getLockTimeout() {
+        return lockTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a transaction waits for a lock before it is aborted.
+     */
+    public void setLockTimeout(long millis) {
+        this.lockTimeoutMillis = millis;
+    }
+
+    /**
+     * @return the number of page and record locks on one table after which
+     *         a transaction tries to lock the whole table instead
+     */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Sets the number of page and record locks on one table after which a
+     * transaction tries to lock the whole table instead; Integer.MAX_VALUE
+     * turns lock escalation off.
+     */
+    public void setEscalationThreshold(int locks) {
+        this.escalationThreshold = locks;
+    }
+
+    /**
+     * @return how the victim of a deadlock is chosen
+     */
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    /**
+     * Sets how the victim of a deadlock is chosen.
+     */
+    public void setVictimPolicy(VictimPolicy policy) {
+        this.victimPolicy = policy;
+    }
+
+    /**
+     * @return how deadlocks are dealt with
+     */
+    public DeadlockMode getDeadlockMode() {
+        return deadlockMode;
+    }
+
+    /**
+     * Sets how deadlocks are dealt with. This should only be changed while
+     * no transactions are running.
+     */
+    public void setDeadlockMode(DeadlockMode mode) {
+        this.deadlockMode = mode;
+    }
+
+    /**
+     * @return the number of deadlocks found since this LockManager was created
+     */
+    public long getDeadlockCount() {
+        latch.lock();
+        try {
+            return deadlocks;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * @return the number of times a transaction's page and record locks were
+     *         replaced by a table lock since this LockManager was created
+     */
+    public long getEscalationCount() {
+        latch.lock();
+        try {
+            return escalations;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * @return true if tid holds a lock on the page, or a table lock that
+     *         lets it read every page of the table
+     */
     public boolean holdsLock(TransactionId tid, PageId pid){
-        return readOnly.get(pid).contains(tid) || writeOnly.get(pid) == tid;
+        latch.lock();
+        try {
+            LockMode table = heldMode(tid, pid.getTableId());
+            return heldMode(tid, pid) != null || (table != null && table.covers(LockMode.S));
+        } finally {
+            latch.unlock();
+        }
     }
 
-    public synchronized void releaseLock(TransactionId tid, PageId pageId){
-        Set<TransactionId> tids = readOnly.get(pageId);
-        Set<PageId> shardPages = sharedPages.get(tid);
-        Set<PageId> excluPages = exclusivePages.get(tid);
+    /**
+     * @return true if tid may read (or, with READ_WRITE, change) the record,
+     *         through a lock on the record itself or on its page or table
+     */
+    public boolean holdsLock(TransactionId tid, RecordId rid, Permissions pm){
+        latch.lock();
+        try {
+            return coveredAbove(tid, rid, LockMode.forPage(pm)) || covers(heldMode(tid, rid), LockMode.forPage(pm));
+        } finally {
+            latch.unlock();
+        }
+    }
 
-        if(tids != null && tids.contains(tid)){
-            tids.remove(tid);
-            readOnly.put(pageId, tids);
+    /**
+     * @return the mode tid holds the table in, or null if it holds no lock on it
+     */
+    public LockMode getTableLock(TransactionId tid, int tableId) {
+        latch.lock();
+        try {
+            return heldMode(tid, tableId);
+        } finally {
+            latch.unlock();
         }
+    }
 
-        writeOnly.remove(pageId);
+    /**
+     * Acquires a lock on a page, waiting until it is granted. The page's table
+     * is locked in the matching intention mode first, unless the transaction
+     * already holds a table lock that covers the page.
+     *
+     * @throws TransactionAbortedException if the lock was not granted within
+     *         the lock timeout, the waiting thread was interrupted, the
+     *         transaction completed while it was waiting, or it was aborted
+     *         to break or prevent a deadlock
+     */
+    public void acquireLock(TransactionId tid, PageId pageId, Permissions pm)
+            throws TransactionAbortedException {
+        Integer tableId = pageId.getTableId();
+        LockMode mode = LockMode.forPage(pm);
+        if (holdsAlready(tid, tableId, mode) || holdsAlready(tid, pageId, mode)) {
+            checkWounded(tid);
+            return;
+        }
+        latch.lock();
+        try {
+            checkWounded(tid);
+            if (covers(heldMode(tid, tableId), mode)) {
+                return;
+            }
+            lock(tid, tableId, mode.intention());
+            lock(tid, pageId, mode);
+            if (lockCount(tid, tableId) > escalationThreshold) {
+                escalate(tid, tableId);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
 
-        if(shardPages!=null && shardPages.contains(pageId)){
-            shardPages.remove(pageId);
-            sharedPages.put(tid, shardPages);
+    /**
+     * Acquires a lock on a single record, waiting until it is granted. The
+     * record's table and page are locked in the matching intention mode
+     * first, unless the transaction already holds a lock on either that
+     * covers the record.
+     *
+     * @throws TransactionAbortedException as for {@link #acquireLock}
+     */
+    public void acquireRecordLock(TransactionId tid, RecordId rid, Permissions pm)
+            throws TransactionAbortedException {
+        PageId pageId = rid.getPageId();
+        Integer tableId = pageId.getTableId();
+        LockMode mode = LockMode.forPage(pm);
+        if (holdsAlready(tid, tableId, mode) || holdsAlready(tid, pageId, mode)
+            || holdsAlready(tid, rid, mode)) {
+            checkWounded(tid);
+            return;
+        }
+        latch.lock();
+        try {
+            checkWounded(tid);
+            if (coveredAbove(tid, rid, mode)) {
+                return;
+            }
+            lock(tid, tableId, mode.intention());
+            lock(tid, pageId, mode.intention());
+            lock(tid, rid, mode);
+            if (lockCount(tid, tableId) > escalationThreshold) {
+                escalate(tid, tableId);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Acquires a lock on a whole table, waiting until it is granted. Page
+     * and record locks the transaction holds on the table are kept.
+     *
+     * @throws TransactionAbortedException as for {@link #acquireLock}
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            checkWounded(tid);
+            lock(tid, tableId, mode);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void checkWounded(TransactionId tid) throws TransactionAbortedException {
+        if (tid != null && !wounded.isEmpty() && wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * @return true if tid holds a lock on the object that covers mode,
+     *         looked up without the latch. Only the transaction's own
+     *         requests and its completion change its locks, so the answer
+     *         is current for the thread running it.
+     */
+    private boolean holdsAlready(TransactionId tid, Object key, LockMode mode) {
+        if (tid == null) {
+            return false;
+        }
+        ConcurrentHashMap<Object, LockMode> mine = granted.get(tid);
+        return mine != null && covers(mine.get(key), mode);
+    }
+
+    /** @return true if a lock on the record's table or page gives tid mode on the record */
+    private boolean coveredAbove(TransactionId tid, RecordId rid, LockMode mode) {
+        PageId pageId = rid.getPageId();
+        return covers(heldMode(tid, pageId.getTableId()), mode) || covers(heldMode(tid, pageId), mode);
+    }
+
+    private static boolean covers(LockMode held, LockMode mode) {
+        return held != null && held.covers(mode);
+    }
+
+    /**
+     * Locks a table, page or record in the given mode, waiting in the queue
+     * if it cannot be granted right away. The caller holds the latch.
+     */
+    private void lock(TransactionId tid, Object key, LockMode mode)
+            throws TransactionAbortedException {
+        LockMode held = heldMode(tid, key);
+        if (covers(held, mode)) {
+            return;
+        }
+        LinkedList<LockRequest> queue = waiters.get(key);
+        boolean upgrade = held != null;
+        if ((queue == null || upgrade) && canGrant(tid, key, mode)) {
+            grant(tid, key, mode);
+            return;
         }
 
-        if(excluPages!=null && excluPages.contains(pageId)){
-            excluPages.remove(pageId);
-            exclusivePages.put(tid, excluPages);
+        if (queue == null) {
+            queue = new LinkedList<>();
+            waiters.put(key, queue);
         }
+        LockRequest request = new LockRequest(tid, mode, latch.newCondition());
+        if (upgrade) {
+            queue.addFirst(request);
+        } else {
+            queue.addLast(request);
+        }
+        LinkedList<LockRequest> mine = pending.get(tid);
+        if (mine == null) {
+            mine = new LinkedList<>();
+            pending.put(tid, mine);
+        }
+        mine.add(request);
+        if (deadlockMode == DeadlockMode.DETECT) {
+            breakDeadlock(tid);
+        } else {
+            preventDeadlock(key, request);
+        }
+
+        long remaining = TimeUnit.MILLISECONDS.toNanos(lockTimeoutMillis);
+        try {
+            while (!request.granted) {
+                if (request.cancelled || remaining <= 0) {
+                    throw new TransactionAbortedException();
+                }
+                remaining = request.wakeup.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            if (!request.granted) {
+                // leaving the queue may let the requests behind us in
+                removeRequest(key, request);
+                grantWaiters(key);
+            }
+        }
+    }
+
+    /**
+     * Tries to replace tid's page and record locks on a table by one table
+     * lock: S if it has only read the table so far, X if it has written to
+     * it. Gives up without waiting if another transaction holds a
+     * conflicting lock on the table.
+     */
+    private void escalate(TransactionId tid, Integer tableId) {
+        LockMode held = heldMode(tid, tableId);
+        LockMode mode = held == LockMode.IS ? LockMode.S : LockMode.X;
+        if (!canGrant(tid, tableId, mode)) {
+            return;
+        }
+        grant(tid, tableId, mode);
+        escalations++;
+
+        List<Object> covered = new ArrayList<>();
+        for (Object key : lockedObjects.get(tid)) {
+            if (!(key instanceof Integer) && tableOf(key) == tableId) {
+                covered.add(key);
+            }
+        }
+        for (Object key : covered) {
+            release(tid, key);
+        }
+    }
 
+    /**
+     * Releases tid's lock on a page. Table locks are kept, including the
+     * intention lock taken for the page, and so are locks on the page's
+     * records.
+     */
+    public void releaseLock(TransactionId tid, PageId pageId){
+        latch.lock();
+        try {
+            release(tid, pageId);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void release(TransactionId tid, Object key){
+        HashMap<TransactionId, LockMode> holders = locks.get(key);
+        if(holders == null || !holders.containsKey(tid)){
+            return;
+        }
+        holders.remove(tid);
+        if(holders.isEmpty()){
+            locks.remove(key);
+        }
+        lockedObjects.get(tid).remove(key);
+        if(tid != null){
+            granted.get(tid).remove(key);
+        }
+        if(!(key instanceof Integer)){
+            HashMap<Integer, Integer> counts = lockCounts.get(tid);
+            counts.put(tableOf(key), counts.get(tableOf(key)) - 1);
+        }
+        grantWaiters(key);
     }
 
+    /**
+     * Releases every lock held by the transaction and cancels any requests it
+     * still has waiting, then grants the locks to whoever is queued for them.
+     * Only the transaction's own locks are looked at, so the cost does not
+     * depend on how many locks other transactions hold.
+     */
     public void releaseAllLocks(TransactionId tid){
-        exclusivePages.remove(tid);
-        sharedPages.remove(tid);
+        latch.lock();
+        try {
+            if (tid != null && !wounded.isEmpty()) {
+                wounded.remove(tid);
+            }
+            lockCounts.remove(tid);
+            if (tid != null) {
+                granted.remove(tid);
+            }
 
-        for(PageId pageId : readOnly.keySet()){
-            Set<TransactionId> transactionIds = readOnly.get(pageId);
-            if(transactionIds != null && transactionIds.contains(tid)){
-                transactionIds.remove(tid);
+            Set<Object> released = lockedObjects.remove(tid);
+            if(released != null){
+                for(Object key : released){
+                    HashMap<TransactionId, LockMode> holders = locks.get(key);
+                    holders.remove(tid);
+                    if(holders.isEmpty()){
+                        locks.remove(key);
+                    }
+                }
             }
-            readOnly.put(pageId, transactionIds);
+
+            cancelRequests(tid);
+
+            if(released != null){
+                for(Object key : released){
+                    grantWaiters(key);
+                }
+            }
+        } finally {
+            latch.unlock();
         }
+    }
 
-        for(PageId pageId : writeOnly.keySet()){
-            if(writeOnly.get(pageId) == tid){
-                writeOnly.remove(pageId);
+    /**
+     * Makes every request the transaction has waiting fail.
+     */
+    private void cancelRequests(TransactionId tid) {
+        LinkedList<LockRequest> mine = pending.get(tid);
+        if (mine == null) {
+            return;
+        }
+        for (LockRequest request : mine) {
+            request.cancelled = true;
+            request.wakeup.signal();
+        }
+    }
+
+    /**
+     * Applies wound-wait or wait-die to a request that has just joined the
+     * queue of a table, page or record. Both the transactions the new
+     * request waits for and the requests queued behind it that now wait for
+     * it are checked, since a lock upgrade goes to the front of the queue.
+     */
+    private void preventDeadlock(Object key, LockRequest request) {
+        for (TransactionId blocker : blockers(key, request)) {
+            settle(request.tid, blocker);
+        }
+        boolean behind = false;
+        for (LockRequest other : waiters.get(key)) {
+            if (other == request) {
+                behind = true;
+            } else if (behind && !other.cancelled && other.tid != request.tid
+                       && !other.mode.isCompatibleWith(request.mode)) {
+                settle(other.tid, request.tid);
             }
         }
     }
 
-    public synchronized boolean grantLock(TransactionId tid, PageId pageId, Permissions pm){
-        if(pm == Permissions.READ_ONLY){
-            Set<TransactionId> transactionIds = readOnly.get(pageId);
-            TransactionId writeTid = writeOnly.get(pageId);
-            if(writeTid == null || writeTid == tid){
-                if(transactionIds == null){
-                    transactionIds = new HashSet<>();
+    /**
+     * Decides what happens when waiter would wait for holder: under
+     * wound-wait an older waiter wounds the holder, under wait-die a
+     * younger waiter dies. Otherwise the waiter just waits.
+     */
+    private void settle(TransactionId waiter, TransactionId holder) {
+        boolean waiterIsOlder = age(waiter) > age(holder);
+        if (deadlockMode == DeadlockMode.WOUND_WAIT && waiterIsOlder) {
+            wounded.add(holder);
+            cancelRequests(holder);
+        } else if (deadlockMode == DeadlockMode.WAIT_DIE && !waiterIsOlder) {
+            cancelRequests(waiter);
+        }
+    }
+
+    /**
+     * Looks for cycles in the wait-for graph through a transaction that has
+     * just started waiting, and aborts a victim on each of them. The new
+     * edges can close more than one cycle at once, so this keeps going until
+     * the waiter is on none or has been picked as a victim itself.
+     */
+    private void breakDeadlock(TransactionId waiter) {
+        while (true) {
+            Map<TransactionId, Set<TransactionId>> waitsFor = buildWaitsForGraph();
+            LinkedList<TransactionId> cycle = new LinkedList<>();
+            if (!findCycle(waiter, waiter, waitsFor, new HashSet<TransactionId>(), cycle)) {
+                return;
+            }
+            deadlocks++;
+            TransactionId victim = null;
+            for (TransactionId tid : cycle) {
+                if (victim == null || preferAsVictim(tid, victim)) {
+                    victim = tid;
                 }
-                transactionIds.add(tid);
-                readOnly.put(pageId, transactionIds);
+            }
+            cancelRequests(victim);
+            if (victim == waiter) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if a is a better deadlock victim than b under the
+     *         current policy
+     */
+    private boolean preferAsVictim(TransactionId a, TransactionId b) {
+        if (victimPolicy == VictimPolicy.FEWEST_LOCKS) {
+            int locksA = lockCount(a);
+            int locksB = lockCount(b);
+            if (locksA != locksB) {
+                return locksA < locksB;
+            }
+        }
+        return age(a) < age(b);
+    }
+
+    private int lockCount(TransactionId tid) {
+        Set<Object> held = lockedObjects.get(tid);
+        return held == null ? 0 : held.size();
+    }
+
+    /** @return a number that is smaller for transactions started later */
+    private static long age(TransactionId tid) {
+        return tid == null ? Long.MAX_VALUE : -tid.getId();
+    }
 
-                Set<PageId> shardPages = sharedPages.get(tid);
-                if(shardPages == null){
-                    shardPages = new HashSet<>();
+    /**
+     * Builds the wait-for graph: a waiting request waits for the other
+     * transactions holding a conflicting lock on its object and for those
+     * queued ahead of it with a conflicting request. Requests already
+     * cancelled are on their way out and add no edges.
+     */
+    private Map<TransactionId, Set<TransactionId>> buildWaitsForGraph() {
+        Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+        for (Map.Entry<Object, LinkedList<LockRequest>> entry : waiters.entrySet()) {
+            Object key = entry.getKey();
+            for (LockRequest request : entry.getValue()) {
+                if (request.cancelled) {
+                    continue;
                 }
-                shardPages.add(pageId);
-                sharedPages.put(tid, shardPages);
-                return false;
-            }else{
-                return true;
+                Set<TransactionId> edges = waitsFor.get(request.tid);
+                if (edges == null) {
+                    edges = new HashSet<>();
+                    waitsFor.put(request.tid, edges);
+                }
+                edges.addAll(blockers(key, request));
             }
-        }else{
-            Set<TransactionId> transactionIds = readOnly.get(pageId);
-            TransactionId transactionId = writeOnly.get(pageId);
+        }
+        return waitsFor;
+    }
 
-            if(transactionIds != null && transactionIds.size() > 1){
-                return true;
-            }else if(transactionIds != null && transactionIds.size() == 1 && !transactionIds.contains(tid)){
-                return true;
-            }else if(transactionId != null && transactionId != tid){
+    /**
+     * @return the other transactions a queued request waits for: those
+     *         holding a conflicting lock on its object and those queued
+     *         ahead of it with a conflicting request that is not cancelled
+     */
+    private Set<TransactionId> blockers(Object key, LockRequest request) {
+        Set<TransactionId> blockers = new HashSet<>();
+        HashMap<TransactionId, LockMode> holders = locks.get(key);
+        if (holders != null) {
+            for (Map.Entry<TransactionId, LockMode> holder : holders.entrySet()) {
+                if (!holder.getValue().isCompatibleWith(request.mode)) {
+                    blockers.add(holder.getKey());
+                }
+            }
+        }
+        for (LockRequest before : waiters.get(key)) {
+            if (before == request) {
+                break;
+            }
+            if (!before.cancelled && !before.mode.isCompatibleWith(request.mode)) {
+                blockers.add(before.tid);
+            }
+        }
+        blockers.remove(request.tid);
+        return blockers;
+    }
+
+    /**
+     * Depth first search for a path from tid back to target.
+     *
+     * @param cycle filled with the transactions on the cycle if one is found
+     * @return true if a cycle was found
+     */
+    private static boolean findCycle(TransactionId tid, TransactionId target,
+                                     Map<TransactionId, Set<TransactionId>> waitsFor,
+                                     Set<TransactionId> visited, LinkedList<TransactionId> cycle) {
+        Set<TransactionId> edges = waitsFor.get(tid);
+        if (edges == null || !visited.add(tid)) {
+            return false;
+        }
+        cycle.addLast(tid);
+        for (TransactionId next : edges) {
+            if (next == target || findCycle(next, target, waitsFor, visited, cycle)) {
                 return true;
-            }else{
-                writeOnly.put(pageId, tid);
-                Set<PageId> exclPages = exclusivePages.get(tid);
-                if(exclPages == null){
-                    exclPages = new HashSet<>();
+            }
+        }
+        cycle.removeLast();
+        return false;
+    }
+
+    /**
+     * Grants queued requests for an object, in order, until one has to keep
+     * waiting, and wakes the waiters that got their lock.
+     */
+    private void grantWaiters(Object key) {
+        LinkedList<LockRequest> queue = waiters.get(key);
+        if (queue == null) {
+            return;
+        }
+        while (!queue.isEmpty()) {
+            LockRequest head = queue.getFirst();
+            if (!head.cancelled && !canGrant(head.tid, key, head.mode)) {
+                break;
+            }
+            queue.removeFirst();
+            forgetRequest(head);
+            if (!head.cancelled) {
+                grant(head.tid, key, head.mode);
+                head.granted = true;
+            }
+            head.wakeup.signal();
+        }
+        if (queue.isEmpty()) {
+            waiters.remove(key);
+        }
+    }
+
+    private void removeRequest(Object key, LockRequest request) {
+        LinkedList<LockRequest> queue = waiters.get(key);
+        if (queue != null) {
+            queue.remove(request);
+            if (queue.isEmpty()) {
+                waiters.remove(key);
+            }
+        }
+        forgetRequest(request);
+    }
+
+    /** Drops a request that has left its queue from its transaction's list. */
+    private void forgetRequest(LockRequest request) {
+        LinkedList<LockRequest> mine = pending.get(request.tid);
+        if (mine != null && mine.remove(request) && mine.isEmpty()) {
+            pending.remove(request.tid);
+        }
+    }
+
+    /** @return the table a table id, PageId or RecordId key belongs to */
+    private static int tableOf(Object key) {
+        if (key instanceof PageId) {
+            return ((PageId) key).getTableId();
+        }
+        if (key instanceof RecordId) {
+            return ((RecordId) key).getPageId().getTableId();
+        }
+        return (Integer) key;
+    }
+
+    /** @return the mode tid holds the object in, or null */
+    private LockMode heldMode(TransactionId tid, Object key) {
+        HashMap<TransactionId, LockMode> holders = locks.get(key);
+        return holders == null ? null : holders.get(tid);
+    }
+
+    private int lockCount(TransactionId tid, Integer tableId) {
+        HashMap<Integer, Integer> counts = lockCounts.get(tid);
+        Integer count = counts == null ? null : counts.get(tableId);
+        return count == null ? 0 : count;
+    }
+
+    /** @return true if no other transaction holds a conflicting lock */
+    private boolean canGrant(TransactionId tid, Object key, LockMode mode) {
+        HashMap<TransactionId, LockMode> holders = locks.get(key);
+        if (holders != null) {
+            for (Map.Entry<TransactionId, LockMode> holder : holders.entrySet()) {
+                if (holder.getKey() != tid && !holder.getValue().isCompatibleWith(mode)) {
+                    return false;
                 }
-                exclPages.add(pageId);
-                exclusivePages.put(tid, exclPages);
-                return false;
             }
         }
+        return true;
     }
 
+    private void grant(TransactionId tid, Object key, LockMode mode) {
+        HashMap<TransactionId, LockMode> holders = locks.get(key);
+        if (holders == null) {
+            holders = new HashMap<>();
+            locks.put(key, holders);
+        }
+        LockMode held = holders.get(tid);
+        LockMode combined = held == null ? mode : held.combine(mode);
+        holders.put(tid, combined);
+        if (tid != null) {
+            ConcurrentHashMap<Object, LockMode> modes = granted.get(tid);
+            if (modes == null) {
+                modes = new ConcurrentHashMap<>();
+                granted.put(tid, modes);
+            }
+            modes.put(key, combined);
+        }
+        if (held != null) {
+            return;
+        }
 
+        Set<Object> mine = lockedObjects.get(tid);
+        if (mine == null) {
+            mine = new HashSet<>();
+            lockedObjects.put(tid, mine);
+        }
+        mine.add(key);
+        if (!(key instanceof Integer)) {
+            HashMap<Integer, Integer> counts = lockCounts.get(tid);
+            if (counts == null) {
+                counts = new HashMap<>();
+                lockCounts.put(tid, counts);
+            }
+            counts.put(tableOf(key), lockCount(tid, tableOf(key)) + 1);
+        }
+    }
 }
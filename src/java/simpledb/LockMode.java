@@ -0,0 +1,72 @@
+package simpledb;
+
+/**
+ * The modes a lock can be held in. Records are only ever locked in S or X
+ * mode. Tables and pages can also be locked with the intention modes: IS
+ * and IX say that the transaction holds (or is about to take) S or X locks
+ * on some of the objects below, and SIX is S on the whole object plus IX.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    private static final boolean[][] COMPATIBLE = {
+        //           IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    /**
+     * @return the page lock mode needed for the given permissions
+     */
+    public static LockMode forPage(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /**
+     * @return true if two transactions may hold this mode and other on the
+     *         same object at the same time
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return true if holding this mode gives at least the rights of other
+     */
+    public boolean covers(LockMode other) {
+        return combine(other) == this;
+    }
+
+    /**
+     * @return the weakest mode that gives the rights of both this mode and
+     *         other, i.e. what a lock held in this mode is upgraded to when
+     *         other is requested
+     */
+    public LockMode combine(LockMode other) {
+        if (this == other) {
+            return this;
+        }
+        if (this == X || other == X) {
+            return X;
+        }
+        if (this == IS) {
+            return other;
+        }
+        if (other == IS) {
+            return this;
+        }
+        // the remaining pairs all mix S with IX
+        return SIX;
+    }
+
+    /**
+     * @return the intention mode a transaction must hold on a table before
+     *         locking one of its pages in this mode
+     */
+    public LockMode intention() {
+        return this == S || this == IS ? IS : IX;
+    }
+}
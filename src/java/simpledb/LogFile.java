@@ -3,7 +3,16 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +41,79 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Log buffer: </u>
+<p>
+
+Records are not written to the file one field at a time. They are
+serialized into an in-memory log buffer, and the buffer goes to the end of
+the log in one large write when it fills up, when the log is forced, and
+before the log is read. A record's LSN is its position in the log, which
+is known as soon as it is put into the buffer: the LSN of the buffer's
+first byte plus the record's position in the buffer. That is also the LSN
+each record ends with.
+
+<p>
+<u> Segments: </u>
+<p>
+
+The records are kept in segment files of a fixed size next to the log
+file, see LogSegments, and the log file itself only holds the LSN of the
+last checkpoint and the segment size. Truncating the log deletes the
+segments that end before the oldest record the last checkpoint still
+needs, so it costs next to nothing, however much of the log is left, and
+LSNs never change.
+
+<p>
+<u> Group commit: </u>
+<p>
+
+A commit has to wait until its commit record is on disk, but it does not
+need its own fsync for that. With group commit on (the default),
+logCommit only puts the commit record into the log buffer and waits. A
+single flusher thread writes the buffer out, forces the file once and then
+wakes every committer whose record it covered. Commits that arrive while
+the flusher is forcing the file pile up and go out together in the next
+round, so under load many commits share one fsync.
+<p>
+Other threads force the log too, so commits are numbered and waiters
+watch the number of the last commit known to be on disk rather than
+LSNs.
+
+<p>
+<u> Recovery: </u>
+<p>
+
+recover() works in three passes, as in ARIES. Analysis reads the log from
+the last checkpoint on to find the transactions that never finished.
+Redo then repeats history: it applies the after bytes of every UPDATE
+record, in log order, whichever transaction wrote it, from the oldest
+change the checkpoint found not yet written to its page on disk. Records
+of different pages are independent, so redo splits the pages among
+several threads, each of which reads its pages once, applies their
+records and writes them back. Undo finally rolls back the unfinished
+transactions, newest change first.
+<p>
+Rolling back a change, at abort or at restart, logs a compensating UPDATE
+record, so redo also repeats rollbacks, and a transaction with an ABORT
+record needs no undo. There are no page LSNs: the before and after bytes
+of a change can be applied to a page in either state, so redo simply
+applies every record again. Undo puts back only the bits a change
+flipped, since the rest of its bytes may since hold another transaction's
+committed delete of a record on the same page.
+
+<p>
+<u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy: they write no pages and stop nobody for longer
+than it takes to append the checkpoint record. The log keeps a dirty page
+table, with the first logged change of each page that may not be on disk
+yet (its recLSN); whoever writes a page reports the changes the write
+covered with pageWritten(). The checkpoint record lists the running
+transactions and the dirty page table, and the BufferPool's page writer
+then writes those pages in the background, so that later checkpoints find
+fewer and let the log be truncated further.
 */
 
 /**
@@ -39,33 +121,37 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself holds a long integer, the LSN of the last
+written checkpoint, or -1 if there are no checkpoints, and an integer,
+the size of the segments.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The segments hold the log records, one after another; a record may
+start in one segment and end in the next.  Log records are variable
+length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, its LSN, which is the
+position in the log where the record began.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS describe the change to one page, usually as the byte
+ranges that differ between its before and after image.  The change can
+be read with PageUpdate.read(), which gives the before and after image
+back as Page objects; see PageUpdate for the encoding.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table.  The format of the record is an integer count of the
+number of transactions, as well as a long integer transaction id and a
+long integer first record LSN for each active transaction, followed
+by an integer count of dirty pages and, for each, an integer table id, an
+integer page number and the long integer recLSN of the page.
 
 </ul>
 
@@ -74,7 +160,9 @@ for each active transaction.
 public class LogFile {
 
     File logFile;
-    RandomAccessFile raf;
+    /** the log file itself, with the last checkpoint and the segment size */
+    RandomAccessFile control;
+    LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -86,6 +174,9 @@ public class LogFile {
 
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
+    /** Default size of the segment files. */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    private static final int CONTROL_SIZE = LONG_SIZE + INT_SIZE;
 
     long currentOffset = -1;
     int pageSize;
@@ -93,6 +184,213 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** How long the flusher thread waits for new commits before it exits. */
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    private boolean groupCommit = true;
+    /** Size of the log buffer; a larger record gets a buffer of its own size. */
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+
+    /** records not written to the file yet */
+    private ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+    /** the LSN of the first byte in the log buffer */
+    private long bufferStart = -1;
+    /** scratch space for encoding the change in an UPDATE record */
+    private final ByteArrayOutputStream updateBytes = new ByteArrayOutputStream();
+    private final DataOutputStream updateOut = new DataOutputStream(updateBytes);
+    private long fileWrites = 0;
+    /** number of the last commit record appended */
+    private long lastCommit = 0;
+    /** the flusher thread, or null if there is none running */
+    private Thread flusher;
+
+    /** guards the fields below, which track what is known to be on disk */
+    private final Object durable = new Object();
+    /** number of the last commit record known to be on disk */
+    private long durableCommit = 0;
+    /** the error the flusher failed with, reported to waiting committers */
+    private IOException flushError;
+    private long commits = 0;
+    private long groupFlushes = 0;
+    private long groupedCommits = 0;
+    private int largestGroup = 0;
+    private long commitNanos = 0;
+    private long maxCommitNanos = 0;
+
+    /** the dirty page table: for each page with logged changes that may
+        not be on disk, the LSNs of the first and the last of them */
+    private final HashMap<PageId, long[]> dirtyPages = new HashMap<PageId, long[]>();
+    /** the LSN up to which the log is known to be on disk; guarded by durable */
+    private long durableLsn = 0;
+    private long checkpoints = 0;
+    private long checkpointNanos = 0;
+    private long maxCheckpointNanos = 0;
+
+    /** number of threads the redo pass of recover() runs on */
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    private RecoveryStats lastRecovery;
+
+    /** What a run of recover() did and how long each of its passes took. */
+    public static class RecoveryStats {
+        /** log records read by the analysis pass */
+        public final int records;
+        /** UPDATE records redone */
+        public final int redone;
+        /** pages the redone records were on */
+        public final int redonePages;
+        /** threads the redo pass ran on */
+        public final int threads;
+        /** transactions rolled back because they had not finished */
+        public final int losers;
+        /** UPDATE records undone for them */
+        public final int undone;
+        public final long analysisNanos;
+        public final long redoNanos;
+        public final long undoNanos;
+
+        RecoveryStats(int records, int redone, int redonePages, int threads, int losers, int undone,
+                      long analysisNanos, long redoNanos, long undoNanos) {
+            this.records = records;
+            this.redone = redone;
+            this.redonePages = redonePages;
+            this.threads = threads;
+            this.losers = losers;
+            this.undone = undone;
+            this.analysisNanos = analysisNanos;
+            this.redoNanos = redoNanos;
+            this.undoNanos = undoNanos;
+        }
+
+        /** @return how long recovery took in all, in milliseconds */
+        public double getTotalMillis() {
+            return (analysisNanos + redoNanos + undoNanos) / 1e6;
+        }
+
+        public String toString() {
+            return String.format("recovered in %.1f ms (analysis %.1f, redo %.1f, undo %.1f): %d records read, "
+                                 + "%d redone on %d pages by %d threads, %d undone for %d unfinished transactions",
+                                 getTotalMillis(), analysisNanos / 1e6, redoNanos / 1e6, undoNanos / 1e6,
+                                 records, redone, redonePages, threads, undone, losers);
+        }
+    }
+
+    /** A log record as read back by a RecordReader. */
+    private static class LogRecord {
+        long offset;
+        int type;
+        long tid;
+        /** the change an UPDATE record describes */
+        PageUpdate update;
+        /** the transactions a CHECKPOINT record lists, with their first records */
+        Map<Long, Long> running;
+        /** the dirty page table a CHECKPOINT record lists */
+        Map<PageId, Long> dirty;
+    }
+
+    /** Counts the bytes read through it. */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /** Reads records one after another from some LSN on, through a
+        buffer. It stops at the end of the log, or at a record that was
+        only partly written when the system went down. The caller holds
+        this LogFile's monitor while using it, and closes it. */
+    private class RecordReader {
+        private final long from;
+        private final CountingInputStream counter;
+        private final DataInputStream in;
+        /** where the last complete record read ends */
+        private long end;
+
+        RecordReader(long from) throws IOException {
+            writeBuffer();
+            this.from = from;
+            this.end = from;
+            counter = new CountingInputStream(segments.read(from));
+            in = new DataInputStream(counter);
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        /** @return where the last complete record read ends, which is
+            where the log ends once next() has returned null */
+        long getEnd() {
+            return end;
+        }
+
+        /** @return the next record, or null if there is no complete one left */
+        LogRecord next() throws IOException {
+            LogRecord r = new LogRecord();
+            r.offset = from + counter.count;
+            try {
+                r.type = in.readInt();
+                r.tid = in.readLong();
+                switch (r.type) {
+                case UPDATE_RECORD:
+                    r.update = PageUpdate.read(in);
+                    break;
+                case CHECKPOINT_RECORD:
+                    int n = in.readInt();
+                    r.running = new HashMap<Long, Long>();
+                    while (n-- > 0) {
+                        long tid = in.readLong();
+                        r.running.put(tid, in.readLong());
+                    }
+                    n = in.readInt();
+                    r.dirty = new HashMap<PageId, Long>();
+                    while (n-- > 0) {
+                        int tableId = in.readInt();
+                        PageId pid = new HeapPageId(tableId, in.readInt());
+                        r.dirty.put(pid, in.readLong());
+                    }
+                    break;
+                case ABORT_RECORD:
+                case COMMIT_RECORD:
+                case BEGIN_RECORD:
+                    break;
+                default:
+                    return null;
+                }
+                if (in.readLong() != r.offset) {
+                    return null;
+                }
+            } catch (EOFException e) {
+                return null;
+            }
+            end = from + counter.count;
+            return r;
+        }
+    }
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +403,24 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor, see above.
+
+        @param f The log file's name; the segments go next to it
+        @param segmentSize the size of the segments, if a new log is
+            started; an existing log keeps the size it was written with
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
+        if (control.length() == CONTROL_SIZE) {
+            control.seek(LONG_SIZE);
+            segmentSize = control.readInt();
+        }
+        // any other file is not a log, and is thrown away unless recovered
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,14 +441,70 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startOver();
         }
     }
 
+    /** Throws out the whole log and starts a new one at LSN 0. */
+    private void startOver() throws IOException {
+        segments.clear();
+        control.setLength(0);
+        control.writeLong(NO_CHECKPOINT_ID);
+        control.writeInt((int) segments.getSegmentSize());
+        control.getChannel().force(false);
+        currentOffset = bufferStart = 0;
+    }
+
+    /** Makes room for n more bytes in the log buffer. */
+    private void reserve(int n) throws IOException {
+        if (logBuffer.remaining() < n) {
+            writeBuffer();
+            if (logBuffer.capacity() < n) {
+                logBuffer = ByteBuffer.allocateDirect(n);
+            }
+        }
+    }
+
+    private void appendInt(int v) throws IOException {
+        reserve(INT_SIZE);
+        logBuffer.putInt(v);
+    }
+
+    private void appendLong(long v) throws IOException {
+        reserve(LONG_SIZE);
+        logBuffer.putLong(v);
+    }
+
+    private void appendBytes(byte[] b) throws IOException {
+        reserve(b.length);
+        logBuffer.put(b);
+    }
+
+    /** Ends the record that started at currentOffset with that offset, and
+        moves currentOffset past it. */
+    private void endRecord() throws IOException {
+        appendLong(currentOffset);
+        currentOffset = bufferStart + logBuffer.position();
+    }
+
+    /** Writes the log buffer to the end of the log. The caller holds this
+        LogFile's monitor. */
+    private void writeBuffer() throws IOException {
+        if (logBuffer.position() == 0) {
+            return;
+        }
+        logBuffer.flip();
+        segments.append(logBuffer);
+        bufferStart = segments.getEnd();
+        logBuffer.clear();
+        fileWrites++;
+    }
+
+    /** @return the number of writes the log buffer was written out with */
+    public synchronized long getFileWriteCount() {
+        return fileWrites;
+    }
+
     public int getTotalRecords() {
         return totalRecords;
     }
@@ -149,19 +519,19 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord); it takes
+            // the page write locks, which come before this monitor
+            rollback(tid);
+
             synchronized(this) {
                 preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendInt(ABORT_RECORD);
+                appendLong(tid.getId());
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,130 +539,268 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  With group commit on, the record is
+        handed to the flusher thread, and this waits until it is on disk.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
+    public void logCommit(TransactionId tid) throws IOException {
+        long start = System.nanoTime();
+        awaitCommit(appendCommit(tid), start);
+    }
+
+    /** Appends a commit record for tid without waiting for it to reach the
+        disk, unless group commit is off.
+
+        @return the number to pass to awaitCommit
+    */
+    synchronized long appendCommit(TransactionId tid) throws IOException {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        preAppend();
+        appendInt(COMMIT_RECORD);
+        appendLong(tid.getId());
+        endRecord();
         tidToFirstLogRecord.remove(tid.getId());
+        if (!groupCommit) {
+            force();
+            return 0;
+        }
+        if (flusher == null) {
+            startFlusher();
+        }
+        notifyAll();
+        return ++lastCommit;
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
-        @param tid The transaction performing the write
-        @param before The before image of the page
-        @param after The after image of the page
+    /** Waits until the commit record appendCommit returned the given number
+        for is on disk.
 
-        @see simpledb.Page#getBeforeImage
+        @param start when the commit started, for the commit time statistics
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
-        throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
+    void awaitCommit(long commit, long start) throws IOException {
+        synchronized (durable) {
+            while (durableCommit < commit) {
+                if (flushError != null) {
+                    throw flushError;
+                }
+                try {
+                    durable.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for commit " + commit);
+                }
+            }
+        }
+        commitDone(start);
+    }
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+    /** @return true if tid has log records and no commit or abort record yet */
+    synchronized boolean hasRecords(TransactionId tid) {
+        return tid != null && tidToFirstLogRecord.containsKey(tid.getId());
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    private void commitDone(long start) {
+        long nanos = System.nanoTime() - start;
+        synchronized (durable) {
+            commits++;
+            commitNanos += nanos;
+            maxCommitNanos = Math.max(maxCommitNanos, nanos);
+        }
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    private void startFlusher() {
+        flusher = new Thread("simpledb-log-flusher") {
+            public void run() {
+                flushCommits();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** The flusher thread's loop: writes out the log buffer and forces the
+        log whenever there are new commits, until none arrive for a while. */
+    private void flushCommits() {
+        long flushed = 0;
+        while (true) {
+            long upTo;
+            long upToLsn;
+            int group;
+            FileChannel channel;
+            synchronized (this) {
+                long idleUntil = System.currentTimeMillis() + FLUSHER_IDLE_MILLIS;
+                while (lastCommit == flushed) {
+                    long wait = idleUntil - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        flusher = null;
+                        return;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        // only ever stops when idle
+                    }
+                }
+                try {
+                    writeBuffer();
+                } catch (IOException e) {
+                    flushFailed(e);
+                    flusher = null;
+                    return;
+                }
+                upTo = lastCommit;
+                upToLsn = bufferStart;
+                group = (int) (upTo - flushed);
+                channel = segments.getLastChannel();
+            }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+            try {
+                try {
+                    if (channel != null) {
+                        channel.force(true);
+                    }
+                } catch (ClosedChannelException e) {
+                    // the log moved on to the next segment in the meantime,
+                    // and forced this one before closing it
+                }
+            } catch (IOException e) {
+                flushFailed(e);
+                synchronized (this) {
+                    flusher = null;
+                }
+                return;
+            }
+            flushed = upTo;
+            synchronized (durable) {
+                groupFlushes++;
+                groupedCommits += group;
+                largestGroup = Math.max(largestGroup, group);
+                markDurable(upTo, upToLsn);
+            }
+        }
+    }
+
+    private void flushFailed(IOException e) {
+        synchronized (durable) {
+            flushError = e;
+            durable.notifyAll();
+        }
+    }
+
+    /** Wake the committers of commits up to the given one, and note that
+        the log is on disk up to the given LSN. The caller holds durable. */
+    private void markDurable(long commit, long lsn) {
+        durableLsn = Math.max(durableLsn, lsn);
+        if (commit > durableCommit) {
+            durableCommit = commit;
+            durable.notifyAll();
+        }
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Turn group commit on or off. With it off, every commit forces the
+        log itself while holding the LogFile monitor. */
+    public synchronized void setGroupCommit(boolean on) {
+        groupCommit = on;
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    public synchronized boolean isGroupCommit() {
+        return groupCommit;
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+    /** @return the number of commits logged so far */
+    public long getCommitCount() {
+        synchronized (durable) {
+            return commits;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** @return the number of times the flusher forced a group of commits to disk */
+    public long getGroupFlushCount() {
+        synchronized (durable) {
+            return groupFlushes;
+        }
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** @return the average number of commits per flush by the flusher, or 0
+        if it has not flushed anything */
+    public double getAverageGroupSize() {
+        synchronized (durable) {
+            return groupFlushes == 0 ? 0 : groupedCommits / (double) groupFlushes;
+        }
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    /** @return the most commits the flusher forced to disk at once */
+    public int getLargestGroupSize() {
+        synchronized (durable) {
+            return largestGroup;
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** @return the average time logCommit took, in microseconds */
+    public double getAverageCommitMicros() {
+        synchronized (durable) {
+            return commits == 0 ? 0 : commitNanos / (commits * 1000.0);
+        }
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** @return the longest time logCommit took, in microseconds */
+    public long getMaxCommitMicros() {
+        synchronized (durable) {
+            return maxCommitNanos / 1000;
+        }
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Write an UPDATE record to disk for the specified tid and page
+        (with provided         before and after images.)
+        @param tid The transaction performing the write
+        @param before The before image of the page
+        @param after The after image of the page
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        @return the LSN of the UPDATE record
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+        @see simpledb.Page#getBeforeImage
+    */
+    public  synchronized long logWrite(TransactionId tid, Page before,
+                                       Page after)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + currentOffset);
+        preAppend();
+        /* update record conists of
+
+           record type
+           transaction id
+           the change from before to after (see PageUpdate)
+           start offset
+        */
+        if (!tidToFirstLogRecord.containsKey(tid.getId())) {
+            // transactions run through the BufferPool alone log no BEGIN
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
         }
-        return newPage;
+        long lsn = currentOffset;
+        appendUpdate(tid.getId(), PageUpdate.diff(before, after));
 
+        Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
+    }
+
+    /** Appends an UPDATE record of the given change, and adds it to the
+        dirty page table. */
+    private void appendUpdate(long tid, PageUpdate update) throws IOException {
+        long lsn = currentOffset;
+        long[] lsns = dirtyPages.get(update.getPageId());
+        if (lsns == null) {
+            dirtyPages.put(update.getPageId(), new long[] {lsn, lsn});
+        } else {
+            lsns[1] = lsn;
+        }
+        appendInt(UPDATE_RECORD);
+        appendLong(tid);
+        update.write(updateOut);
+        appendBytes(updateBytes.toByteArray());
+        updateBytes.reset();
+        endRecord();
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +815,158 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendInt(BEGIN_RECORD);
+        appendLong(tid.getId());
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record. This is fuzzy:
+        no page is written, and the LogFile monitor is only held to append
+        the record. The pages in the dirty page table are then handed to
+        the BufferPool's page writer. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        List<PageId> dirty;
+        long oldest;
+        synchronized (this) {
+            long start = System.nanoTime();
+            preAppend();
+            long startCpOffset = currentOffset;
+            appendInt(CHECKPOINT_RECORD);
+            appendLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            appendInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                appendLong(e.getKey());
+                appendLong(e.getValue());
             }
+            //and the dirty page table
+            appendInt(dirtyPages.size());
+            for (Map.Entry<PageId, long[]> e : dirtyPages.entrySet()) {
+                appendInt(e.getKey().getTableId());
+                appendInt(e.getKey().pageNumber());
+                appendLong(e.getValue()[0]);
+            }
+            endRecord();
+            force();
+
+            //once the CP is written, make sure the CP location in the
+            // log file is updated
+            control.seek(0);
+            control.writeLong(startCpOffset);
+            control.getChannel().force(false);
+            dirty = new ArrayList<PageId>(dirtyPages.keySet());
+            oldest = oldestNeeded(startCpOffset);
+
+            long nanos = System.nanoTime() - start;
+            checkpoints++;
+            checkpointNanos += nanos;
+            maxCheckpointNanos = Math.max(maxCheckpointNanos, nanos);
         }
 
-        logTruncate();
+        Database.getBufferPool().writeBehind(dirty);
+        truncateBefore(oldest);
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** @return the number of checkpoints taken so far */
+    public synchronized long getCheckpointCount() {
+        return checkpoints;
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+    /** @return the average time a checkpoint held the LogFile monitor, in
+        microseconds, not counting truncation */
+    public synchronized double getAverageCheckpointMicros() {
+        return checkpoints == 0 ? 0 : checkpointNanos / (checkpoints * 1000.0);
+    }
 
-            int numOutstanding = raf.readInt();
+    /** @return the longest time a checkpoint held the LogFile monitor, in
+        microseconds, not counting truncation */
+    public synchronized long getMaxCheckpointMicros() {
+        return maxCheckpointNanos / 1000;
+    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption. That is the segments that end before the oldest
+        record the last checkpoint needs, see oldestNeeded(). */
+    public void logTruncate() throws IOException {
+        long oldest;
+        synchronized (this) {
+            preAppend();
+            oldest = oldestNeeded();
         }
+        truncateBefore(oldest);
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** Drops the segments that end before the given LSN. Only that is
+        done under the LogFile monitor; the files are deleted after, so
+        that appends do not wait for the file system. */
+    private void truncateBefore(long lsn) {
+        List<File> dropped;
+        synchronized (this) {
+            dropped = segments.dropBefore(lsn);
+            Debug.log("TRUNCATING LOG BEFORE %d: %d SEGMENTS DROPPED, %d LEFT",
+                      lsn, dropped.size(), segments.getSegmentCount());
+        }
+        for (File f : dropped) {
+            f.delete();
+        }
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
+    /** @return the LSN of the oldest record recovery may need: the last
+        checkpoint, the first records of the transactions it lists, or
+        the recLSNs of its dirty page table; or the start of the log if
+        there is no checkpoint */
+    private long oldestNeeded() throws IOException {
+        control.seek(0);
+        long cp = control.readLong();
+        if (cp == NO_CHECKPOINT_ID) {
+            return segments.getStart();
+        }
+        LogRecord checkpoint = readRecord(cp);
+        if (checkpoint == null || checkpoint.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        long oldest = cp;
+        for (Long first : checkpoint.running.values()) {
+            oldest = Math.min(oldest, first);
         }
+        for (Long recLSN : checkpoint.dirty.values()) {
+            oldest = Math.min(oldest, recLSN);
+        }
+        return oldest;
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** @return oldestNeeded() for a checkpoint at the given LSN that was
+        just written, from the tables it was written from */
+    private long oldestNeeded(long cp) {
+        long oldest = cp;
+        for (Long first : tidToFirstLogRecord.values()) {
+            oldest = Math.min(oldest, first);
+        }
+        for (long[] lsns : dirtyPages.values()) {
+            oldest = Math.min(oldest, lsns[0]);
+        }
+        return oldest;
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** @return the record at the given LSN, or null if there is no
+        complete one */
+    private LogRecord readRecord(long lsn) throws IOException {
+        RecordReader reader = new RecordReader(lsn);
+        try {
+            return reader.next();
+        } finally {
+            reader.close();
+        }
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** @return the number of segment files the log takes up */
+    public synchronized long getSegmentCount() {
+        return segments.getSegmentCount();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -458,53 +974,441 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        Only the pages on disk are rolled back here, each change with a
+        compensating UPDATE record; when the transaction aborts, the
+        BufferPool puts back the cached pages itself.
 
         @param tid The transaction to rollback
+        @throws NoSuchElementException if tid has no log records
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
+        BufferPool bp = Database.getBufferPool();
+        synchronized (bp) {
+            List<LogRecord> updates = new ArrayList<LogRecord>();
+            Set<PageId> pids = new HashSet<PageId>();
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " has no log records");
+                }
+                RecordReader reader = new RecordReader(first);
+                try {
+                    for (LogRecord r = reader.next(); r != null; r = reader.next()) {
+                        if (r.type == UPDATE_RECORD && r.tid == tid.getId()) {
+                            updates.add(r);
+                            pids.add(r.update.getPageId());
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            // no other write of these pages may come between reading and
+            // writing them; those locks come before this monitor
+            List<ReentrantLock> locks = bp.pageWriteLocks(pids);
+            for (ReentrantLock lock : locks) {
+                lock.lock();
             }
+            try {
+                synchronized (this) {
+                    undo(updates);
+                }
+            } finally {
+                for (ReentrantLock lock : locks) {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Rolls back the given changes on disk, newest first. Each gets a
+        compensating UPDATE record on behalf of the transaction that made
+        it, and once those are on disk, the pages are written. The caller
+        holds this LogFile's monitor, and unless nothing else is running,
+        the BufferPool's write locks of the pages.
+
+        @param updates UPDATE records in log order
+        @return the pages rolled back
+    */
+    private Set<PageId> undo(List<LogRecord> updates) throws IOException {
+        Map<PageId, byte[]> pages = new HashMap<PageId, byte[]>();
+        Map<PageId, PageUpdate> anyUpdate = new HashMap<PageId, PageUpdate>();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord r = updates.get(i);
+            PageId pid = r.update.getPageId();
+            if (!pages.containsKey(pid)) {
+                pages.put(pid, readPageData(pid));
+            }
+            byte[] data = pages.get(pid);
+            if (data == null) {
+                continue;
+            }
+            appendUpdate(r.tid, r.update.undoing(data));
+            pages.put(pid, r.update.undo(data));
+            anyUpdate.put(pid, r.update);
+        }
+        force();
+        for (Map.Entry<PageId, PageUpdate> e : anyUpdate.entrySet()) {
+            writePage(e.getValue().makePage(pages.get(e.getKey())));
         }
+        return anyUpdate.keySet();
+    }
+
+    /** @return the data of a page as it is on disk, all zeros if it is past
+        the end of its file, or null if its table is gone */
+    private static byte[] readPageData(PageId pid) {
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDbFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        Page page = file.readPage(pid);
+        return page == null ? new byte[BufferPool.PAGE_SIZE] : page.getPageData();
+    }
+
+    private static void writePage(Page page) throws IOException {
+        Database.getCatalog().getDbFile(page.getId().getTableId()).writePage(page);
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                segments.close();
+                control.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /** Set how many threads the redo pass of recover() runs on. */
+    public synchronized void setRecoveryThreads(int threads) {
+        recoveryThreads = Math.max(1, threads);
+    }
+
+    /** @return what the last call to recover() did and how long it took,
+        or null if recover() has not been called */
+    public synchronized RecoveryStats getLastRecovery() {
+        return lastRecovery;
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        The catalog must list every table the log mentions. See the
+        class comment for how it works; getLastRecovery() tells how long
+        it took.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                tidToFirstLogRecord.clear();
+                long start = System.nanoTime();
+                if (control.length() != CONTROL_SIZE) {
+                    // nothing was ever logged
+                    startOver();
+                    lastRecovery = new RecoveryStats(0, 0, 0, 0, 0, 0, System.nanoTime() - start, 0, 0);
+                    return;
+                }
+                control.seek(0);
+                long cp = control.readLong();
+                if (cp == NO_CHECKPOINT_ID) {
+                    cp = segments.getStart();
+                }
+
+                // analysis: find the changes that may be missing on disk and
+                // the transactions that never finished, with their first
+                // records. Before the checkpoint, only changes to the pages
+                // in its dirty page table from their recLSN on are needed.
+                Map<PageId, Long> dirty = new HashMap<PageId, Long>();
+                long redoFrom = cp;
+                LogRecord checkpoint = readRecord(cp);
+                if (checkpoint != null && checkpoint.type == CHECKPOINT_RECORD) {
+                    dirty = checkpoint.dirty;
+                    for (Long recLSN : dirty.values()) {
+                        redoFrom = Math.min(redoFrom, recLSN);
+                    }
+                }
+                Map<Long, Long> unfinished = new HashMap<Long, Long>();
+                List<LogRecord> updates = new ArrayList<LogRecord>();
+                RecordReader reader = new RecordReader(redoFrom);
+                int records = 0;
+                for (LogRecord r = reader.next(); r != null; r = reader.next()) {
+                    records++;
+                    if (r.offset < cp) {
+                        Long recLSN = r.type == UPDATE_RECORD ? dirty.get(r.update.getPageId()) : null;
+                        if (recLSN != null && r.offset >= recLSN) {
+                            updates.add(r);
+                        }
+                        continue;
+                    }
+                    switch (r.type) {
+                    case CHECKPOINT_RECORD:
+                        if (r.offset == cp) {
+                            unfinished.putAll(r.running);
+                        }
+                        break;
+                    case UPDATE_RECORD:
+                        updates.add(r);
+                        noteRunning(unfinished, r);
+                        break;
+                    case BEGIN_RECORD:
+                        noteRunning(unfinished, r);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        unfinished.remove(r.tid);
+                        break;
+                    }
+                }
+                reader.close();
+                // drop a record that was only partly written
+                long end = reader.getEnd();
+                segments.setEnd(end);
+                currentOffset = bufferStart = end;
+                long analyzed = System.nanoTime();
+
+                // redo: repeat history
+                Set<PageId> touched = new HashSet<PageId>();
+                int threads = redo(updates, touched);
+                long redone = System.nanoTime();
+
+                // undo: roll back the unfinished transactions and log their aborts
+                List<LogRecord> losing = new ArrayList<LogRecord>();
+                if (!unfinished.isEmpty()) {
+                    reader = new RecordReader(Collections.min(unfinished.values()));
+                    for (LogRecord r = reader.next(); r != null && r.offset < end; r = reader.next()) {
+                        if (r.type == UPDATE_RECORD && unfinished.containsKey(r.tid)) {
+                            losing.add(r);
+                        }
+                    }
+                    reader.close();
+                    touched.addAll(undo(losing));
+                    for (Long tid : unfinished.keySet()) {
+                        appendInt(ABORT_RECORD);
+                        appendLong(tid);
+                        endRecord();
+                    }
+                    force();
+                }
+                for (PageId pid : touched) {
+                    Database.getBufferPool().discardPage(pid);
+                }
+                // every change is on disk now
+                dirtyPages.clear();
+                long undone = System.nanoTime();
+
+                lastRecovery = new RecoveryStats(records, updates.size(), touched.size(), threads,
+                                                 unfinished.size(), losing.size(),
+                                                 analyzed - start, redone - analyzed, undone - redone);
+                Debug.log("%s", lastRecovery);
             }
-         }
+        }
+    }
+
+    /** Notes the transaction of record r as running since r, unless it
+        was noted earlier. */
+    private static void noteRunning(Map<Long, Long> unfinished, LogRecord r) {
+        if (!unfinished.containsKey(r.tid)) {
+            unfinished.put(r.tid, r.offset);
+        }
+    }
+
+    /** Applies the after bytes of the given changes to their pages on
+        disk. The pages are split among the recovery threads by page id;
+        each thread reads its pages, applies their changes in log order and
+        writes them back.
+
+        @param updates UPDATE records in log order
+        @param touched gets the ids of the pages changed
+        @return the number of threads used
+    */
+    private int redo(List<LogRecord> updates, Set<PageId> touched) throws IOException {
+        final Map<PageId, List<PageUpdate>> byPage = new HashMap<PageId, List<PageUpdate>>();
+        for (LogRecord r : updates) {
+            List<PageUpdate> changes = byPage.get(r.update.getPageId());
+            if (changes == null) {
+                changes = new ArrayList<PageUpdate>();
+                byPage.put(r.update.getPageId(), changes);
+            }
+            changes.add(r.update);
+        }
+        touched.addAll(byPage.keySet());
+        int threads = Math.max(1, Math.min(recoveryThreads, byPage.size()));
+        List<List<PageId>> parts = new ArrayList<List<PageId>>();
+        for (int i = 0; i < threads; i++) {
+            parts.add(new ArrayList<PageId>());
+        }
+        for (PageId pid : byPage.keySet()) {
+            parts.get((pid.hashCode() & 0x7fffffff) % threads).add(pid);
+        }
+        if (threads == 1) {
+            redoPages(parts.get(0), byPage);
+            return 1;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-recovery");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            for (final List<PageId> part : parts) {
+                done.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        redoPages(part, byPage);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during redo");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return threads;
+    }
+
+    private static void redoPages(List<PageId> pids, Map<PageId, List<PageUpdate>> byPage) throws IOException {
+        for (PageId pid : pids) {
+            byte[] data = readPageData(pid);
+            if (data == null) {
+                continue;
+            }
+            List<PageUpdate> changes = byPage.get(pid);
+            for (PageUpdate u : changes) {
+                data = u.redo(data);
+            }
+            writePage(changes.get(0).makePage(data));
+        }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            if (control.length() != CONTROL_SIZE) {
+                System.out.println("empty log");
+                return;
+            }
+            control.seek(0);
+            System.out.println("last checkpoint at " + control.readLong());
+            System.out.println(segments.getSegmentCount() + " segments of " + segments.getSegmentSize() + " bytes");
+            // truncation leaves part of the records before this
+            RecordReader reader = new RecordReader(oldestNeeded());
+            for (LogRecord r = reader.next(); r != null; r = reader.next()) {
+                StringBuilder line = new StringBuilder();
+                line.append(r.offset).append(": ");
+                switch (r.type) {
+                case ABORT_RECORD:
+                    line.append("ABORT ").append(r.tid);
+                    break;
+                case COMMIT_RECORD:
+                    line.append("COMMIT ").append(r.tid);
+                    break;
+                case BEGIN_RECORD:
+                    line.append("BEGIN ").append(r.tid);
+                    break;
+                case UPDATE_RECORD:
+                    line.append("UPDATE ").append(r.tid).append(" ").append(r.update.getPageId());
+                    if (r.update.isFullImage()) {
+                        line.append(" (whole page)");
+                    }
+                    break;
+                case CHECKPOINT_RECORD:
+                    line.append("CHECKPOINT, running ").append(r.running);
+                    break;
+                }
+                System.out.println(line);
+            }
+            reader.close();
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writeBuffer();
+        segments.force();
+        synchronized (durable) {
+            markDurable(lastCommit, bufferStart);
+        }
+    }
+
+    /** Forces the log unless it is on disk up to the given LSN already. */
+    void flushTo(long lsn) throws IOException {
+        synchronized (durable) {
+            if (durableLsn >= lsn) {
+                return;
+            }
+        }
+        force();
+    }
+
+    /** Forces the log unless every change logged for the page so far is
+        on disk already, as it has to be before the page is written. */
+    void flushPage(PageId pid) throws IOException {
+        long last;
+        synchronized (this) {
+            long[] lsns = dirtyPages.get(pid);
+            if (lsns == null) {
+                return;
+            }
+            last = lsns[1];
+        }
+        flushTo(last + 1);
+    }
+
+    /** @return the LSN the next record gets, which is where the log ends */
+    synchronized long getCurrentLsn() {
+        return currentOffset;
+    }
+
+    /** Notes in the dirty page table that a page has been written with
+        every change logged before the given LSN. The caller must make sure
+        that no older image of the page is written after it. */
+    synchronized void pageWritten(PageId pid, long upTo) {
+        long[] lsns = dirtyPages.get(pid);
+        if (lsns == null) {
+            return;
+        }
+        if (lsns[1] < upTo) {
+            dirtyPages.remove(pid);
+        } else if (lsns[0] < upTo) {
+            lsns[0] = upTo;
+        }
+    }
+
+    /** @return true unless every change logged for the page before the
+        given LSN has been written, see pageWritten() */
+    synchronized boolean needsWrite(PageId pid, long upTo) {
+        long[] lsns = dirtyPages.get(pid);
+        return lsns != null && lsns[0] < upTo;
+    }
+
+    /** @return the number of pages in the dirty page table */
+    public synchronized int getDirtyPageCount() {
+        return dirtyPages.size();
     }
 
 }
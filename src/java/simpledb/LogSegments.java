@@ -0,0 +1,229 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The records of a {@link LogFile}, kept in a series of segment files of a
+ * fixed size next to the log file itself. A record's LSN is its position
+ * in the whole log: segment n holds the bytes from LSN n * segment size
+ * on, in a file named after the log file with "." and n appended, and
+ * records run on from one segment into the next. Once no record before
+ * some LSN is needed any more, the segments that end before it are
+ * deleted; nothing else is moved or rewritten, and LSNs never change.
+ * <p>
+ * Only the segment the log ends in is open for writing. When the log
+ * moves on to the next segment, the finished one is forced and closed.
+ * The LogFile's monitor guards all of this, except that the channel
+ * returned by getLastChannel() may be forced without it.
+ */
+class LogSegments {
+    private final File base;
+    private final long segmentSize;
+    /** the number of the first segment there is */
+    private long first;
+    /** the LSN the log ends at */
+    private long end;
+    /** the segment the log ends in, open for writing, or null */
+    private FileChannel last;
+    private long lastNumber = -1;
+
+    /**
+     * Opens the segments of the log with the given file name, if there
+     * are any.
+     */
+    LogSegments(File base, long segmentSize) {
+        this.base = base;
+        this.segmentSize = segmentSize;
+        List<Long> numbers = existingSegments();
+        if (numbers.isEmpty()) {
+            first = 0;
+            end = 0;
+        } else {
+            first = numbers.get(0);
+            long n = numbers.get(numbers.size() - 1);
+            end = n * segmentSize + segmentFile(n).length();
+        }
+    }
+
+    /** @return the file segment n is kept in */
+    File segmentFile(long n) {
+        return new File(base.getPath() + "." + n);
+    }
+
+    /** @return the numbers of the segment files there are, in order */
+    private List<Long> existingSegments() {
+        List<Long> numbers = new ArrayList<Long>();
+        String prefix = base.getName() + ".";
+        String[] names = base.getAbsoluteFile().getParentFile().list();
+        if (names == null) {
+            return numbers;
+        }
+        for (String name : names) {
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                long n = Long.parseLong(name.substring(prefix.length()));
+                if (n >= 0) {
+                    numbers.add(n);
+                }
+            } catch (NumberFormatException e) {
+                // some other file
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the LSN the first segment there is starts at */
+    long getStart() {
+        return first * segmentSize;
+    }
+
+    /** @return the LSN the log ends at */
+    long getEnd() {
+        return end;
+    }
+
+    /** @return the number of segment files there are */
+    long getSegmentCount() {
+        return end == getStart() ? 0 : (end - 1) / segmentSize - first + 1;
+    }
+
+    /** Writes the buffer's remaining bytes at the end of the log. */
+    void append(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            long n = end / segmentSize;
+            FileChannel channel = channelFor(n);
+            int room = (int) Math.min(buf.remaining(), (n + 1) * segmentSize - end);
+            int limit = buf.limit();
+            buf.limit(buf.position() + room);
+            while (buf.hasRemaining()) {
+                end += channel.write(buf, end - n * segmentSize);
+            }
+            buf.limit(limit);
+        }
+    }
+
+    /** @return segment n, open for writing; the one before it is
+        finished, and gets forced and closed */
+    private FileChannel channelFor(long n) throws IOException {
+        if (n != lastNumber) {
+            if (last != null) {
+                last.force(true);
+                last.close();
+            }
+            last = new RandomAccessFile(segmentFile(n), "rw").getChannel();
+            lastNumber = n;
+        }
+        return last;
+    }
+
+    /** @return the channel of the segment the log ends in, or null if
+        nothing has been written since the segments were opened */
+    FileChannel getLastChannel() {
+        return last;
+    }
+
+    /** Forces what has been written to disk. */
+    void force() throws IOException {
+        if (last != null) {
+            last.force(true);
+        }
+    }
+
+    /**
+     * @return the log from the given LSN to its end; the caller has to
+     *         close it
+     */
+    InputStream read(long from) throws IOException {
+        List<InputStream> streams = new ArrayList<InputStream>();
+        try {
+            for (long n = from / segmentSize; n * segmentSize < end; n++) {
+                FileInputStream in = new FileInputStream(segmentFile(n));
+                streams.add(in);
+                if (n == from / segmentSize) {
+                    long skip = from - n * segmentSize;
+                    while (skip > 0) {
+                        skip -= in.skip(skip);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            for (InputStream in : streams) {
+                in.close();
+            }
+            throw e;
+        }
+        return new BufferedInputStream(new SequenceInputStream(Collections.enumeration(streams)), 1 << 16);
+    }
+
+    /**
+     * Drops the segments that end before the given LSN from the log. Their
+     * files are not needed any more, but are left for the caller to
+     * delete, which it can do without holding the LogFile's monitor.
+     *
+     * @return the files of the segments dropped
+     */
+    List<File> dropBefore(long lsn) {
+        long keep = Math.min(lsn, end) / segmentSize;
+        List<File> dropped = new ArrayList<File>();
+        while (first < keep) {
+            dropped.add(segmentFile(first));
+            first++;
+        }
+        return dropped;
+    }
+
+    /** Cuts the log off at the given LSN, which is before its end. */
+    void setEnd(long lsn) throws IOException {
+        close();
+        long n = lsn / segmentSize;
+        for (long i = n + 1; i * segmentSize < end; i++) {
+            segmentFile(i).delete();
+        }
+        File f = segmentFile(n);
+        if (f.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(lsn - n * segmentSize);
+            } finally {
+                raf.close();
+            }
+        }
+        end = lsn;
+    }
+
+    /** Deletes every segment, so that the log starts over at LSN 0. */
+    void clear() throws IOException {
+        close();
+        for (long n : existingSegments()) {
+            segmentFile(n).delete();
+        }
+        first = 0;
+        end = 0;
+    }
+
+    void close() throws IOException {
+        if (last != null) {
+            last.close();
+            last = null;
+            lastNumber = -1;
+        }
+    }
+}
@@ -51,6 +51,11 @@ public interface Page {
     */
     public Page getBeforeImage();
 
+    /** Provide the same contents as getBeforeImage, as a page that is
+        shared by snapshot readers and so must never be modified.
+    */
+    public Page getSharedBeforeImage();
+
     /*
      * a transaction that wrote this page just committed it.
      * copy current content to the before image.
@@ -0,0 +1,315 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The change to one page that an UPDATE log record describes, and its
+ * encoding in the log.
+ * <p>
+ * Pages are identified by a numeric page type code and the page id's
+ * fields, and read back by the constructor the code stands for, without
+ * reflection. A change is usually logged as just the byte ranges that
+ * differ between the before and the after image, with both versions of
+ * each range; applying the before or after bytes to a page that is in
+ * either state gives the page in that state. The whole before and after
+ * images are only logged if that is shorter.
+ * <p>
+ * Undoing a change only puts back the bits that differ between its before
+ * and after image. Transactions that delete single records share a page,
+ * and the slot header byte, with each other, so the rest of a range may
+ * hold another transaction's committed change by the time this one is
+ * rolled back.
+ * <p>
+ * An encoded change is a byte page type code, the page id, a byte format
+ * and then, in FULL format, an int page length and both images, or in
+ * DELTA format, an unsigned short number of ranges and for each an
+ * unsigned short offset and length followed by the range's before and
+ * after bytes.
+ */
+class PageUpdate {
+    /** Page type code of a HeapPage, whose id is a table id and a page number. */
+    static final byte HEAP_PAGE = 1;
+
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+    /** changed ranges separated by at most this many unchanged bytes are logged as one */
+    private static final int MERGE_GAP = 2;
+    /** bytes taken by the offset and length of a range */
+    private static final int RANGE_HEADER = 4;
+
+    private final byte pageType;
+    private final PageId pid;
+    private final int pageLength;
+    /** in DELTA format, the changed ranges; null in FULL format */
+    private final int[] offsets;
+    private final int[] lengths;
+    /** the whole images in FULL format, otherwise the ranges' bytes one after another */
+    private final byte[] before;
+    private final byte[] after;
+
+    private PageUpdate(byte pageType, PageId pid, int pageLength, int[] offsets, int[] lengths,
+                       byte[] before, byte[] after) {
+        this.pageType = pageType;
+        this.pid = pid;
+        this.pageLength = pageLength;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the change from before to after, which must be images of the
+     *         same page
+     */
+    static PageUpdate diff(Page before, Page after) throws IOException {
+        byte pageType = typeOf(before);
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        if (a.length != b.length) {
+            throw new IOException("before and after image of " + before.getId() + " differ in size");
+        }
+
+        List<int[]> ranges = new ArrayList<int[]>();
+        int size = 0;
+        int i = 0;
+        while (i < b.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend over differing bytes and short runs of equal ones
+            for (int j = end; j < b.length && j - end <= MERGE_GAP; j++) {
+                if (a[j] != b[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[] {start, end - start});
+            size += RANGE_HEADER + 2 * (end - start);
+            i = end;
+        }
+
+        if (size >= 2 * b.length) {
+            return new PageUpdate(pageType, before.getId(), b.length, null, null, b, a);
+        }
+        int[] offsets = new int[ranges.size()];
+        int[] lengths = new int[ranges.size()];
+        int total = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            offsets[r] = ranges.get(r)[0];
+            lengths[r] = ranges.get(r)[1];
+            total += lengths[r];
+        }
+        byte[] beforeBytes = new byte[total];
+        byte[] afterBytes = new byte[total];
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(b, offsets[r], beforeBytes, pos, lengths[r]);
+            System.arraycopy(a, offsets[r], afterBytes, pos, lengths[r]);
+            pos += lengths[r];
+        }
+        return new PageUpdate(pageType, before.getId(), b.length, offsets, lengths, beforeBytes, afterBytes);
+    }
+
+    private static byte typeOf(Page page) throws IOException {
+        if (page instanceof HeapPage) {
+            return HEAP_PAGE;
+        }
+        throw new IOException("no log page type code for " + page.getClass().getName());
+    }
+
+    /** Writes this change in the format described above. */
+    void write(DataOutput out) throws IOException {
+        out.writeByte(pageType);
+        int[] idFields = pid.serialize();
+        for (int i = 0; i < idFields.length; i++) {
+            out.writeInt(idFields[i]);
+        }
+        if (offsets == null) {
+            out.writeByte(FULL);
+            out.writeInt(pageLength);
+            out.write(before);
+            out.write(after);
+        } else {
+            out.writeByte(DELTA);
+            out.writeChar(offsets.length);
+            int pos = 0;
+            for (int r = 0; r < offsets.length; r++) {
+                out.writeChar(offsets[r]);
+                out.writeChar(lengths[r]);
+                out.write(before, pos, lengths[r]);
+                out.write(after, pos, lengths[r]);
+                pos += lengths[r];
+            }
+        }
+    }
+
+    /** Reads a change written by {@link #write}. */
+    static PageUpdate read(DataInput in) throws IOException {
+        byte pageType = in.readByte();
+        PageId pid;
+        switch (pageType) {
+        case HEAP_PAGE:
+            int tableId = in.readInt();
+            pid = new HeapPageId(tableId, in.readInt());
+            break;
+        default:
+            throw new IOException("unknown log page type code " + pageType);
+        }
+
+        if (in.readByte() == FULL) {
+            int pageLength = in.readInt();
+            byte[] before = new byte[pageLength];
+            byte[] after = new byte[pageLength];
+            in.readFully(before);
+            in.readFully(after);
+            return new PageUpdate(pageType, pid, pageLength, null, null, before, after);
+        }
+        int numRanges = in.readChar();
+        int[] offsets = new int[numRanges];
+        int[] lengths = new int[numRanges];
+        byte[][] beforeRanges = new byte[numRanges][];
+        byte[][] afterRanges = new byte[numRanges][];
+        int total = 0;
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.readChar();
+            lengths[r] = in.readChar();
+            beforeRanges[r] = new byte[lengths[r]];
+            afterRanges[r] = new byte[lengths[r]];
+            in.readFully(beforeRanges[r]);
+            in.readFully(afterRanges[r]);
+            total += lengths[r];
+        }
+        byte[] before = new byte[total];
+        byte[] after = new byte[total];
+        int pos = 0;
+        for (int r = 0; r < numRanges; r++) {
+            System.arraycopy(beforeRanges[r], 0, before, pos, lengths[r]);
+            System.arraycopy(afterRanges[r], 0, after, pos, lengths[r]);
+            pos += lengths[r];
+        }
+        return new PageUpdate(pageType, pid, BufferPool.PAGE_SIZE, offsets, lengths, before, after);
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** @return true if the record holds the whole images, so they do not depend on the page's current state */
+    boolean isFullImage() {
+        return offsets == null;
+    }
+
+    /**
+     * @param current the page's current contents, in the before or the
+     *        after state of this change; ignored if this holds the whole images
+     * @return the page as it was before this change
+     */
+    Page getBeforeImage(Page current) throws IOException {
+        return makePage(apply(dataOf(current), before));
+    }
+
+    /**
+     * @param current the page's current contents, in the before or the
+     *        after state of this change; ignored if this holds the whole images
+     * @return the page as it was after this change
+     */
+    Page getAfterImage(Page current) throws IOException {
+        return makePage(redo(dataOf(current)));
+    }
+
+    /** @return the data of current, or null if this holds the whole images and does not need it */
+    private byte[] dataOf(Page current) {
+        return offsets == null ? null : current.getPageData();
+    }
+
+    /**
+     * Puts the after bytes of this change into a page's data, in place.
+     *
+     * @return the page's data after this change, which is data itself
+     *         unless this holds the whole images
+     */
+    byte[] redo(byte[] data) {
+        return apply(data, after);
+    }
+
+    /**
+     * Puts back, in place, the bits of a page's data that this change
+     * flipped, and leaves all others as they are.
+     *
+     * @param data the page's data, with this change's bits in their after
+     *        or their before state
+     * @return data
+     */
+    byte[] undo(byte[] data) {
+        if (offsets == null) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = restore(data[i], before[i], after[i]);
+            }
+            return data;
+        }
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            for (int i = 0; i < lengths[r]; i++, pos++) {
+                int at = offsets[r] + i;
+                data[at] = restore(data[at], before[pos], after[pos]);
+            }
+        }
+        return data;
+    }
+
+    /** @return current with the bits in which b and a differ taken from b */
+    private static byte restore(byte current, byte b, byte a) {
+        int changed = b ^ a;
+        return (byte) ((current & ~changed) | (b & changed));
+    }
+
+    /**
+     * @param current the data of the page this change is about to be undone on
+     * @return the change that undoing this one makes to that page, which is
+     *         logged to compensate for it
+     */
+    PageUpdate undoing(byte[] current) {
+        byte[] undone = undo(current.clone());
+        if (offsets == null) {
+            return new PageUpdate(pageType, pid, pageLength, null, null, current.clone(), undone);
+        }
+        byte[] now = new byte[before.length];
+        byte[] then = new byte[before.length];
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(current, offsets[r], now, pos, lengths[r]);
+            System.arraycopy(undone, offsets[r], then, pos, lengths[r]);
+            pos += lengths[r];
+        }
+        return new PageUpdate(pageType, pid, pageLength, offsets, lengths, now, then);
+    }
+
+    private byte[] apply(byte[] data, byte[] image) {
+        if (offsets == null) {
+            return image.clone();
+        }
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(image, pos, data, offsets[r], lengths[r]);
+            pos += lengths[r];
+        }
+        return data;
+    }
+
+    /** @return a page of this change's page type and id holding the given data */
+    Page makePage(byte[] data) throws IOException {
+        switch (pageType) {
+        case HEAP_PAGE:
+            return new HeapPage((HeapPageId) pid, data);
+        default:
+            throw new IOException("unknown log page type code " + pageType);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Writes pages of a BufferPool to disk in the background, one at a time,
+ * so that checkpoints and commits do not have to. A checkpoint hands it the
+ * pages in the log's dirty page table, and a commit under NO FORCE the
+ * pages it changed. Each is written with its committed image by
+ * {@link BufferPool#writeCommittedPage}, which leaves alone pages someone
+ * else has written in the meantime; a page committed again while it is
+ * still queued is only written once. The thread is started when
+ * there is work and exits once it has had none for a while, like the log's
+ * flusher.
+ */
+class PageWriter {
+    /** How long the thread waits for more pages before it exits. */
+    private static final long IDLE_MILLIS = 1000;
+
+    private final BufferPool pool;
+    /** pages waiting to be written, oldest request first */
+    private final LinkedHashSet<PageId> queue = new LinkedHashSet<PageId>();
+    /** the writer thread, or null if there is none running */
+    private Thread thread;
+    /** true while the thread is writing a page it took off the queue */
+    private boolean busy;
+    private long written = 0;
+
+    PageWriter(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /** Queues pages to be written, unless they are queued already. */
+    synchronized void enqueue(Collection<PageId> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        queue.addAll(pids);
+        if (thread == null) {
+            thread = new Thread("simpledb-page-writer") {
+                public void run() {
+                    writePages();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /** Waits until every page queued so far has been dealt with. */
+    synchronized void drain() throws InterruptedException {
+        while (!queue.isEmpty() || busy) {
+            wait();
+        }
+    }
+
+    /** @return the number of pages written so far */
+    synchronized long getPagesWritten() {
+        return written;
+    }
+
+    /** The thread's loop: takes pages off the queue and writes them, until
+        there are none for a while or the pool is no longer in use. */
+    private void writePages() {
+        while (true) {
+            PageId pid;
+            synchronized (this) {
+                busy = false;
+                notifyAll();
+                long idleUntil = System.currentTimeMillis() + IDLE_MILLIS;
+                while (queue.isEmpty()) {
+                    long wait = idleUntil - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        thread = null;
+                        return;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        // only ever stops when idle
+                    }
+                }
+                if (Database.getBufferPool() != pool) {
+                    // replaced, e.g. by Database.reset(); its pages are stale
+                    queue.clear();
+                    thread = null;
+                    notifyAll();
+                    return;
+                }
+                Iterator<PageId> it = queue.iterator();
+                pid = it.next();
+                it.remove();
+                busy = true;
+            }
+
+            try {
+                if (pool.writeCommittedPage(pid)) {
+                    synchronized (this) {
+                        written++;
+                    }
+                }
+            } catch (Exception e) {
+                // the next checkpoint will ask again if it is still dirty, and
+                // eviction writes it back if need be
+                Debug.log("background write of %s failed: %s", pid, e);
+            }
+        }
+    }
+}
@@ -73,7 +73,8 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-        return Integer.parseInt(String.valueOf(this.getPageId().hashCode()) + String.valueOf(this.tupleno()));
+        // record ids are lock keys, so this must not fail for any page id
+        return 31 * this.getPageId().hashCode() + this.tupleno();
     }
 
 }
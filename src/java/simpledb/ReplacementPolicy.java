@@ -0,0 +1,41 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool evicts when it is full.
+ * <p>
+ * The BufferPool reports every page that enters the pool, is hit while
+ * cached, or leaves the pool; the policy keeps whatever bookkeeping it needs
+ * and picks a victim on demand. {@link #pageAccessed} is called on the hit
+ * path without any BufferPool lock held, so implementations must be thread
+ * safe and should keep it cheap.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Callback used by {@link #chooseVictim} to skip pages that may not be
+     * evicted right now (for example dirty pages under NO STEAL).
+     */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /** Called after a page has been read into the pool. */
+    public void pageAdded(PageId pid);
+
+    /** Called whenever a cached page is requested. */
+    public void pageAccessed(PageId pid);
+
+    /** Called after a page has been evicted or discarded from the pool. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Picks the page to evict. The page stays tracked until the BufferPool
+     * calls {@link #pageRemoved}.
+     *
+     * @param evictable filter for pages that are allowed to be evicted
+     * @return the page to evict, or null if no tracked page can be evicted
+     */
+    public PageId chooseVictim(Evictable evictable);
+}
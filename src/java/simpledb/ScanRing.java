@@ -0,0 +1,56 @@
+package simpledb;
+
+/**
+ * ScanRing is a small set of buffer pool frames reserved by one sequential
+ * scan, in the spirit of PostgreSQL's buffer access strategies. Pages the
+ * scan has to read in still go into the shared BufferPool, but once the ring
+ * is full the scan recycles the frame of the oldest page it read in itself
+ * instead of asking the replacement policy for a victim. A scan of a table
+ * much larger than the pool therefore occupies at most a ring's worth of
+ * frames and leaves everybody else's working set alone.
+ * <p>
+ * A ring belongs to a single scan. It is not thread safe; the BufferPool
+ * only touches it while holding its own monitor.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, ScanRing)
+ * @see BufferPool#newScanRing
+ */
+public class ScanRing {
+
+    /** Largest number of frames the BufferPool hands to one ring. */
+    public static final int MAX_FRAMES = 16;
+
+    private final PageId[] frames;
+    private int next;
+
+    /**
+     * @param numFrames the number of pages the ring can hold
+     */
+    public ScanRing(int numFrames) {
+        this.frames = new PageId[Math.max(numFrames, 1)];
+        this.next = 0;
+    }
+
+    /**
+     * Records that the scan read the given page into the pool.
+     *
+     * @return the page whose frame is recycled to make room, or null if the
+     *         ring was not full yet
+     */
+    public PageId add(PageId pid) {
+        PageId recycled = frames[next];
+        frames[next] = pid;
+        next = (next + 1) % frames.length;
+        return recycled;
+    }
+
+    /** @return true if the next page added will recycle a frame */
+    public boolean isFull() {
+        return frames[next] != null;
+    }
+
+    /** @return the number of frames in this ring */
+    public int size() {
+        return frames.length;
+    }
+}
@@ -16,6 +16,7 @@ public class SeqScan implements DbIterator {
     private String tableAlias;
     private DbFileIterator i;
     private DbFile file;
+    private boolean forUpdate;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -80,9 +81,24 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Makes the scan lock the pages it reads for writing, for a scan whose
+     * tuples are deleted as they are read. Two transactions that read a
+     * page under read locks and then delete from it would deadlock.
+     * Takes effect on the next open.
+     */
+    public void setForUpdate(boolean forUpdate) {
+        this.forUpdate = forUpdate;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        i = Database.getCatalog().getDbFile(tableId).iterator(tid);
+        DbFile dbFile = Database.getCatalog().getDbFile(tableId);
+        if (forUpdate && dbFile instanceof HeapFile) {
+            i = ((HeapFile) dbFile).iteratorForUpdate(tid);
+        } else {
+            i = dbFile.iterator(tid);
+        }
         i.open();
     }
 
@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scan resistant 2Q page replacement (Johnson and Shasha, VLDB '94).
+ * <p>
+ * Pages read in for the first time go to a small FIFO queue, A1in. Hits on a
+ * page in A1in are treated as correlated references (a scan reading the same
+ * page twice in a row) and do not promote it. When a page leaves A1in its id
+ * is remembered in a ghost queue, A1out; if the page is read in again while
+ * still in A1out it has proven to be reused and goes to the main LRU queue,
+ * Am. Victims are taken from A1in while it is over its share of the pool, so
+ * a large sequential scan only ever cycles through A1in and cannot push the
+ * frequently reused pages in Am out of the pool.
+ * <p>
+ * Hits take no lock: like CLOCK's reference bit, they only note the page in
+ * a concurrent set, and the pages hit since the last eviction are moved to
+ * the most recently used end of Am when the next victim is chosen. Among
+ * themselves those pages keep no order.
+ */
+public class TwoQueueReplacementPolicy implements ReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+    /** pages hit since the last call to chooseVictim */
+    private final Set<PageId> hits;
+
+    /**
+     * Creates a 2Q policy where A1in holds a quarter of the pool and A1out
+     * remembers a full pool's worth of page ids. The paper suggests half a
+     * pool for A1out, but our pools are small and ghost entries cost only a
+     * page id each.
+     *
+     * @param capacity the number of pages in the BufferPool
+     */
+    public TwoQueueReplacementPolicy(int capacity) {
+        this(capacity, Math.max(1, capacity / 4), Math.max(1, capacity));
+    }
+
+    /**
+     * @param capacity the number of pages in the BufferPool
+     * @param kin the target size of the A1in queue
+     * @param kout the number of page ids remembered in A1out
+     */
+    public TwoQueueReplacementPolicy(int capacity, int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+        this.a1in = new LinkedHashSet<>(capacity);
+        this.a1out = new LinkedHashSet<>(kout);
+        this.am = new LinkedHashSet<>(capacity);
+        this.hits = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>(capacity * 2));
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // checking first keeps repeated hits on a page to a read
+        if (!hits.contains(pid)) {
+            hits.add(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+        hits.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        // move the pages hit in Am to its most recently used end; hits in
+        // A1in are ignored
+        for (Iterator<PageId> it = hits.iterator(); it.hasNext(); ) {
+            PageId pid = it.next();
+            it.remove();
+            if (am.remove(pid)) {
+                am.add(pid);
+            }
+        }
+        PageId victim;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in, evictable);
+            if (victim == null) {
+                victim = firstEvictable(am, evictable);
+            }
+        } else {
+            victim = firstEvictable(am, evictable);
+            if (victim == null) {
+                victim = firstEvictable(a1in, evictable);
+            }
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Evictable evictable) {
+        for (PageId pid : queue) {
+            if (evictable.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,190 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Old committed versions of pages, kept for snapshot transactions.
+ * <p>
+ * Every commit gets a timestamp from a counter, the clock, that only moves
+ * forward once the commit has finished writing all of its pages. A snapshot
+ * transaction
+ * remembers the counter when it starts, and must see every page as it was
+ * committed at that time. So before a commit overwrites the committed image
+ * of a page, the old image is stored here, tagged with the commit's
+ * timestamp: it is the right version for all snapshots taken before it.
+ * <p>
+ * A snapshot that finds no stored version of a page newer than its own
+ * timestamp reads the page's current committed image. Since the old version
+ * is stored before the committed image changes, the snapshot must read the
+ * committed image first and then look here, to never miss a version.
+ * <p>
+ * A version is garbage once every running snapshot is at least as new as the
+ * commit that replaced it. Garbage is collected whenever a commit or a
+ * snapshot ends.
+ * <p>
+ * Commits can overlap, since they wait for their commit records to reach
+ * the disk without holding up the next one. The clock therefore stops just
+ * before the oldest commit that has not ended yet, even if later ones have.
+ */
+public class VersionStore {
+
+    /** A committed image of a page, superseded at the given timestamp. */
+    private static class Version {
+        final PageId pid;
+        /** the image as stored, or once a snapshot has read it, its shared before image */
+        Page image;
+        boolean shared;
+        final long supersededAt;
+
+        Version(PageId pid, Page image, long supersededAt) {
+            this.pid = pid;
+            this.image = image;
+            this.supersededAt = supersededAt;
+        }
+    }
+
+    /** timestamp of the last commit that has finished */
+    private long clock = 0;
+    /** timestamp of the last commit that has begun */
+    private long lastBegun = 0;
+    /** timestamps of the commits that have begun but not ended */
+    private final TreeSet<Long> running = new TreeSet<>();
+    /** stored versions by page, oldest first */
+    private final Map<PageId, ArrayDeque<Version>> versions = new HashMap<>();
+    /** all stored versions in the order they were superseded, for the garbage collector */
+    private final ArrayDeque<Version> byAge = new ArrayDeque<>();
+    /** number of running snapshots by timestamp */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    private long collected = 0;
+
+    /**
+     * Starts a snapshot of the pages as of the last finished commit.
+     *
+     * @return the snapshot's timestamp, to be passed to {@link #getVersion}
+     *         and {@link #endSnapshot}
+     */
+    public synchronized long beginSnapshot() {
+        Integer n = snapshots.get(clock);
+        snapshots.put(clock, n == null ? 1 : n + 1);
+        return clock;
+    }
+
+    /**
+     * Ends a snapshot started with {@link #beginSnapshot} and drops the
+     * versions only it still needed.
+     */
+    public synchronized void endSnapshot(long ts) {
+        Integer n = snapshots.get(ts);
+        if (n == null) {
+            return;
+        }
+        if (n == 1) {
+            snapshots.remove(ts);
+        } else {
+            snapshots.put(ts, n - 1);
+        }
+        collect();
+    }
+
+    /**
+     * @return the timestamp of the commit about to start; until it is passed
+     *         to {@link #endCommit}, snapshots do not see it
+     */
+    public synchronized long beginCommit() {
+        running.add(++lastBegun);
+        return lastBegun;
+    }
+
+    /**
+     * Stores the committed image a commit is about to replace.
+     *
+     * @param pid the page
+     * @param image the page as committed so far; it is never modified, and
+     *        only decoded once a snapshot reads it
+     * @param ts the timestamp of the replacing commit
+     */
+    public synchronized void addVersion(PageId pid, Page image, long ts) {
+        Version v = new Version(pid, image, ts);
+        ArrayDeque<Version> chain = versions.get(pid);
+        if (chain == null) {
+            chain = new ArrayDeque<>();
+            versions.put(pid, chain);
+        }
+        chain.addLast(v);
+        byAge.addLast(v);
+    }
+
+    /**
+     * Ends a commit, which snapshots started from now on see once all
+     * commits that began before it have ended too, and drops the versions
+     * no snapshot needs.
+     */
+    public synchronized void endCommit(long ts) {
+        running.remove(ts);
+        clock = running.isEmpty() ? lastBegun : running.first() - 1;
+        collect();
+    }
+
+    /**
+     * @return the committed image of pid as of snapshot ts, or null if it is
+     *         the page's current committed image. The page is shared with
+     *         other snapshots, so the caller must not modify it.
+     */
+    public synchronized Page getVersion(PageId pid, long ts) {
+        ArrayDeque<Version> chain = versions.get(pid);
+        if (chain == null) {
+            return null;
+        }
+        for (Version v : chain) {
+            if (v.supersededAt > ts) {
+                if (!v.shared) {
+                    v.image = v.image.getSharedBeforeImage();
+                    v.shared = true;
+                }
+                return v.image;
+            }
+        }
+        return null;
+    }
+
+    /** @return the number of old page versions currently stored */
+    public synchronized int getVersionCount() {
+        return byAge.size();
+    }
+
+    /** @return the number of old page versions dropped as garbage so far */
+    public synchronized long getCollectedCount() {
+        return collected;
+    }
+
+    /** @return the number of running snapshots */
+    public synchronized int getSnapshotCount() {
+        int n = 0;
+        for (int count : snapshots.values()) {
+            n += count;
+        }
+        return n;
+    }
+
+    /**
+     * Drops every version superseded no later than the oldest running
+     * snapshot; snapshots started later get a timestamp of at least the
+     * clock, so with none running everything up to the clock goes.
+     */
+    private void collect() {
+        long horizon = snapshots.isEmpty() ? clock : snapshots.firstKey();
+        while (!byAge.isEmpty() && byAge.peekFirst().supersededAt <= horizon) {
+            Version v = byAge.removeFirst();
+            ArrayDeque<Version> chain = versions.get(v.pid);
+            chain.removeFirst();
+            if (chain.isEmpty()) {
+                versions.remove(v.pid);
+            }
+            collected++;
+        }
+    }
+}
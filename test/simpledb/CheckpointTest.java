@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import junit.framework.JUnit4TestAdapter;
+
+public class CheckpointTest extends TestUtil.CreateCommittedPage {
+  private LogFile log;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    log = Database.getLogFile();
+  }
+
+  /**
+   * Deletes the first tuple of p0 on behalf of tid and logs the change
+   * without writing the page, as if it was about to be stolen.
+   */
+  private void deleteAndLog(TransactionId tid) throws Exception {
+    HeapPage page = deleteFirstTuple(tid);
+    log.logWrite(tid, page.getBeforeImage(), page);
+  }
+
+  /**
+   * A checkpoint does not wait for the buffer pool, so it gets done while
+   * another thread holds the pool's monitor.
+   */
+  @Test public void doesNotWaitForBufferPool() throws Exception {
+    final CountDownLatch holding = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread holder = new Thread() {
+      public void run() {
+        synchronized (bp) {
+          holding.countDown();
+          try {
+            done.await();
+          } catch (InterruptedException e) {
+            // let go
+          }
+        }
+      }
+    };
+    holder.start();
+    holding.await();
+    Thread checkpoint = new Thread() {
+      public void run() {
+        try {
+          log.logCheckpoint();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    checkpoint.start();
+    checkpoint.join(10000);
+    boolean blocked = checkpoint.isAlive();
+    done.countDown();
+    holder.join();
+    checkpoint.join();
+    assertFalse(blocked);
+    assertEquals(1, log.getCheckpointCount());
+  }
+
+  /**
+   * Pages in the dirty page table at a checkpoint are written behind it,
+   * with their committed images, and leave the table.
+   */
+  @Test public void writesDirtyPagesBehind() throws Exception {
+    TransactionId tid = new TransactionId();
+    deleteAndLog(tid);
+    assertEquals(1, log.getDirtyPageCount());
+
+    log.logCheckpoint();
+    bp.drainPageWriter();
+    assertEquals(0, log.getDirtyPageCount());
+    assertEquals(1, bp.getBackgroundWriteCount());
+    assertEquals(emptySlots, ((HeapPage) empty.readPage(p0)).getNumEmptySlots());
+
+    bp.transactionComplete(tid, false);
+  }
+
+  /**
+   * A page that someone else wrote after the checkpoint is left alone.
+   */
+  @Test public void skipsPagesWrittenSince() throws Exception {
+    TransactionId tid = new TransactionId();
+    deleteAndLog(tid);
+    bp.flushPages(tid);
+    assertEquals(0, log.getDirtyPageCount());
+
+    bp.writeBehind(Collections.singletonList(p0));
+    bp.drainPageWriter();
+    assertEquals(0, bp.getBackgroundWriteCount());
+    assertEquals(emptySlots + 1, ((HeapPage) empty.readPage(p0)).getNumEmptySlots());
+
+    bp.transactionComplete(tid, false);
+    assertEquals(emptySlots, ((HeapPage) empty.readPage(p0)).getNumEmptySlots());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CheckpointTest.class);
+  }
+}
@@ -0,0 +1,87 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ClockReplacementPolicyTest extends SimpleDbTestBase {
+
+    private ClockReplacementPolicy clock;
+    private PageId p0, p1, p2;
+    private final Set<PageId> pinned = new HashSet<PageId>();
+    private final ReplacementPolicy.Evictable unpinned = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return !pinned.contains(pid);
+        }
+    };
+
+    @Before public void createPolicy() {
+        clock = new ClockReplacementPolicy(3);
+        p0 = new HeapPageId(-1, 0);
+        p1 = new HeapPageId(-1, 1);
+        p2 = new HeapPageId(-1, 2);
+        clock.pageAdded(p0);
+        clock.pageAdded(p1);
+        clock.pageAdded(p2);
+        pinned.clear();
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy.chooseVictim() on untouched pages
+     */
+    @Test public void evictsInClockOrder() {
+        assertEquals(p0, clock.chooseVictim(unpinned));
+        clock.pageRemoved(p0);
+        assertEquals(p1, clock.chooseVictim(unpinned));
+    }
+
+    /**
+     * A page that was hit since the last sweep gets a second chance.
+     */
+    @Test public void secondChance() {
+        // the first sweep clears every reference bit and evicts p0
+        assertEquals(p0, clock.chooseVictim(unpinned));
+        clock.pageRemoved(p0);
+        clock.pageAccessed(p1);
+        assertEquals(p2, clock.chooseVictim(unpinned));
+    }
+
+    /**
+     * Pages the pool refuses to evict are skipped, and null is returned when
+     * nothing can be evicted.
+     */
+    @Test public void skipsPinnedPages() {
+        pinned.add(p0);
+        pinned.add(p1);
+        assertEquals(p2, clock.chooseVictim(unpinned));
+        pinned.add(p2);
+        assertNull(clock.chooseVictim(unpinned));
+    }
+
+    /**
+     * The frame table grows when more pages are tracked than the capacity.
+     */
+    @Test public void grows() {
+        PageId p3 = new HeapPageId(-1, 3);
+        clock.pageAdded(p3);
+        pinned.add(p0);
+        pinned.add(p1);
+        pinned.add(p2);
+        assertEquals(p3, clock.chooseVictim(unpinned));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ClockReplacementPolicyTest.class);
+    }
+}
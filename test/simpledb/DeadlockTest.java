@@ -3,10 +3,16 @@ package simpledb;
 import simpledb.TestUtil.LockGrabber;
 
 import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +217,184 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * With wound-wait, t1 (the older transaction) wounds t2 when it asks for
+   * p1, so t2 aborts on its next request and t1 gets p1.
+   */
+  @Test public void testWoundWait() throws Exception {
+    olderTransactionWins(LockManager.DeadlockMode.WOUND_WAIT);
+  }
+
+  /**
+   * With wait-die, t1 (the older transaction) waits for p1, and t2 dies
+   * when it asks for p0, so t1 gets p1.
+   */
+  @Test public void testWaitDie() throws Exception {
+    olderTransactionWins(LockManager.DeadlockMode.WAIT_DIE);
+  }
+
+  /**
+   * A wounded transaction aborts on its next request even if it asks for a
+   * lock it already holds, which is answered without the latch.
+   */
+  @Test public void woundedAbortsOnHeldLock() throws Exception {
+    bp.getLockManager().setDeadlockMode(LockManager.DeadlockMode.WOUND_WAIT);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write1.acquired());
+
+    try {
+      bp.getPage(tid2, p1, Permissions.READ_ONLY);
+      fail("wounded transaction got a lock");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid2, false);
+    for (int i = 0; i < 10 && !lg1Write1.acquired(); i++) {
+      Thread.sleep(POLL_INTERVAL);
+    }
+    assertTrue(lg1Write1.acquired());
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * t1 acquires p0.write; t2 acquires p1.write; t1 attempts p1.write; t2
+   * attempts p0.write. t2 must be aborted without waiting for a timeout.
+   */
+  private void olderTransactionWins(LockManager.DeadlockMode mode) throws Exception {
+    bp.getLockManager().setDeadlockMode(mode);
+
+    LockGrabber lg1Write0 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Write1 = startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+
+    for (int i = 0; i < 10 && !lg1Write1.acquired(); i++) {
+      Thread.sleep(POLL_INTERVAL);
+    }
+    assertTrue(lg1Write1.acquired());
+    assertFalse(lg2Write0.acquired());
+    assertTrue(lg2Write0.getError() instanceof TransactionAbortedException);
+    assertTrue(lg1Write0.acquired() && lg2Write1.acquired());
+
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * Two Delete operators removing different tuples of p0 both scan the
+   * page before either deletes. Neither may be aborted for a deadlock.
+   */
+  @Test public void concurrentDeletesOnOnePage() throws Exception {
+    final CyclicBarrier bothScanned = new CyclicBarrier(2);
+    final Exception[] errors = new Exception[2];
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < 2; i++) {
+      final int key = i;
+      threads[i] = new Thread() {
+        public void run() {
+          TransactionId tid = new TransactionId();
+          try {
+            Filter filter = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(key)),
+                new SeqScan(tid, empty.getId()));
+            Delete delete = new Delete(tid, new Gate(filter, bothScanned));
+            delete.open();
+            assertEquals(1, ((IntField) delete.next().getField(0)).getValue());
+            delete.close();
+            bp.transactionComplete(tid);
+          } catch (Exception e) {
+            errors[key] = e;
+            try {
+              bp.transactionComplete(tid, false);
+            } catch (Exception ignored) {
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(null, errors[0]);
+    assertEquals(null, errors[1]);
+
+    TransactionId tid = new TransactionId();
+    DbFileIterator it = empty.iterator(tid);
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      assertTrue(((IntField) it.next().getField(0)).getValue() >= 2);
+      count++;
+    }
+    it.close();
+    bp.transactionComplete(tid);
+    assertEquals(1023, count);
+  }
+
+  /**
+   * Passes on the tuples of its child, and after the first one waits a
+   * while for the other thread to get to the barrier as well.
+   */
+  private static class Gate extends Operator {
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private final CyclicBarrier barrier;
+    private boolean waited;
+
+    Gate(DbIterator child, CyclicBarrier barrier) {
+      this.child = child;
+      this.barrier = barrier;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+      child.open();
+      super.open();
+    }
+
+    public void close() {
+      super.close();
+      child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+      child.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+      if (!child.hasNext()) {
+        return null;
+      }
+      Tuple t = child.next();
+      if (!waited) {
+        waited = true;
+        try {
+          barrier.await(5 * WAIT_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | BrokenBarrierException e) {
+          // the other thread is waiting for a lock this one holds
+        } catch (InterruptedException e) {
+          throw new TransactionAbortedException();
+        }
+      }
+      return t;
+    }
+
+    public DbIterator[] getChildren() {
+      return new DbIterator[] { child };
+    }
+
+    public void setChildren(DbIterator[] children) {
+      child = children[0];
+    }
+
+    public TupleDesc getTupleDesc() {
+      return child.getTupleDesc();
+    }
+  }
+
   /**
    * JUnit suite target
    */
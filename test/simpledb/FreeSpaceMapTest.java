@@ -0,0 +1,114 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private File heapFile;
+    private File sidecar;
+
+    @Before public void createFile() throws Exception {
+        heapFile = File.createTempFile("fsm", ".dat");
+        heapFile.deleteOnExit();
+        sidecar = FreeSpaceMap.sidecarFor(heapFile);
+        sidecar.deleteOnExit();
+    }
+
+    @After public void deleteFile() {
+        sidecar.delete();
+        heapFile.delete();
+    }
+
+    /**
+     * Without a sidecar file every existing page is a candidate.
+     */
+    @Test public void missingMapAssumesRoom() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(sidecar, heapFile, 3);
+        assertEquals(0, fsm.nextCandidate(0, 3));
+        assertEquals(2, fsm.nextCandidate(2, 3));
+        assertEquals(-1, fsm.nextCandidate(3, 3));
+        fsm.close();
+    }
+
+    /**
+     * Changes made in memory only are lost on reopening; changes recorded
+     * for written pages are kept.
+     */
+    @Test public void writtenPagesArePersisted() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(sidecar, heapFile, 20);
+        fsm.update(0, false);
+        fsm.update(1, false);
+        fsm.pageWritten(0, false);
+        fsm.pageWritten(17, false);
+        assertEquals(2, fsm.nextCandidate(0, 20));
+        fsm.close();
+
+        fsm = new FreeSpaceMap(sidecar, heapFile, 20);
+        assertEquals(1, fsm.nextCandidate(0, 20));
+        assertEquals(18, fsm.nextCandidate(17, 20));
+        // pages past the stored map have room
+        assertEquals(20, fsm.nextCandidate(20, 21));
+        fsm.close();
+    }
+
+    /**
+     * Writing the committed image of a page does not lose the in-memory
+     * hint that the page in the pool has room.
+     */
+    @Test public void writesKeepMemoryHints() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(sidecar, heapFile, 3);
+        fsm.update(1, true);
+        fsm.pageWritten(1, false);
+        assertEquals(1, fsm.nextCandidate(1, 3));
+        fsm.close();
+
+        fsm = new FreeSpaceMap(sidecar, heapFile, 3);
+        assertEquals(2, fsm.nextCandidate(1, 3));
+        fsm.close();
+    }
+
+    /**
+     * A sidecar file older than the heap file, or with more pages than the
+     * heap file, is cleared.
+     */
+    @Test public void staleMapIsCleared() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(sidecar, heapFile, 3);
+        fsm.pageWritten(0, false);
+        fsm.close();
+        fsm = new FreeSpaceMap(sidecar, heapFile, 3);
+        assertEquals(1, fsm.nextCandidate(0, 3));
+        fsm.close();
+
+        // the heap file changed after the map was last stored
+        heapFile.setLastModified(sidecar.lastModified() + 1000);
+        fsm = new FreeSpaceMap(sidecar, heapFile, 3);
+        assertEquals(0, fsm.nextCandidate(0, 3));
+        fsm.pageWritten(0, false);
+        fsm.pageWritten(9, false);
+        fsm.close();
+
+        // the heap file lost pages the map has bits for
+        heapFile.setLastModified(sidecar.lastModified() - 1000);
+        fsm = new FreeSpaceMap(sidecar, heapFile, 3);
+        assertEquals(0, fsm.nextCandidate(0, 3));
+        assertEquals(0, sidecar.length());
+        fsm.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+  private static final int THREADS = 8;
+  private static final int COMMITS = 50;
+
+  private File file;
+  private File segment;
+  private LogFile log;
+
+  @Before public void setUp() throws Exception {
+    file = File.createTempFile("groupcommit", ".log");
+    file.deleteOnExit();
+    segment = new File(file.getPath() + ".0");
+    segment.deleteOnExit();
+    log = new LogFile(file);
+  }
+
+  @After public void tearDown() {
+    file.delete();
+    segment.delete();
+  }
+
+  /**
+   * Commits from several threads at once all get logged, share flushes,
+   * and leave a log whose records are intact and in a valid order.
+   */
+  @Test public void concurrentCommits() throws Exception {
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    Thread[] threads = new Thread[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < COMMITS; j++) {
+              TransactionId tid = new TransactionId();
+              log.logXactionBegin(tid);
+              log.logCommit(tid);
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertTrue(errors.toString(), errors.isEmpty());
+    assertEquals(THREADS * COMMITS, log.getCommitCount());
+    assertTrue(log.getGroupFlushCount() > 0);
+    assertTrue(log.getGroupFlushCount() <= THREADS * COMMITS);
+
+    // every BEGIN comes before its COMMIT, and every record ends with its
+    // own offset
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+    try {
+      long offset = 0;
+      Set<Long> begun = new HashSet<Long>();
+      int committed = 0;
+      for (int i = 0; i < 2 * THREADS * COMMITS; i++) {
+        int type = in.readInt();
+        long tid = in.readLong();
+        assertEquals(offset, in.readLong());
+        offset += LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE;
+        if (type == LogFile.BEGIN_RECORD) {
+          assertTrue(begun.add(tid));
+        } else {
+          assertEquals(LogFile.COMMIT_RECORD, type);
+          assertTrue(begun.remove(tid));
+          committed++;
+        }
+      }
+      assertEquals(THREADS * COMMITS, committed);
+      assertEquals(-1, in.read());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * With group commit off, every commit forces the log itself.
+   */
+  @Test public void withoutGroupCommit() throws Exception {
+    log.setGroupCommit(false);
+    for (int i = 0; i < 3; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+    assertEquals(3, log.getCommitCount());
+    assertEquals(0, log.getGroupFlushCount());
+    assertEquals(6 * (LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE), segment.length());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GroupCommitTest.class);
+  }
+}
@@ -77,6 +77,24 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on a memory mapped file, including a
+     * page appended after the file was first mapped.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertArrayEquals(hf.readPage(pid).getPageData(), page.getPageData());
+        assertEquals(484, page.getNumEmptySlots());
+
+        HeapPageId appended = new HeapPageId(hf.getId(), 1);
+        mapped.writePage(new HeapPage(appended, HeapPage.createEmptyPageData()));
+        assertEquals(504, ((HeapPage) mapped.readPage(appended)).getNumEmptySlots());
+        mapped.close();
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -121,6 +139,26 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * The iterator moves past empty pages to the tuples after them.
+     */
+    @Test
+    public void testIteratorSkipsEmptyPages() throws Exception {
+        byte[] full = hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData();
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 1), HeapPage.createEmptyPageData()));
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 2), full));
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertNotNull(it.next());
+            count += 1;
+        }
+        assertEquals(40, count);
+        it.close();
+    }
+
     /**
      * JUnit suite target
      */
@@ -43,6 +43,25 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * An insert that finds a page full after all leaves it unlocked.
+     */
+    @Test public void addTupleUnlocksFullPages() throws Exception {
+        for (int i = 0; i < 505; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        // make the free space map stale, so it calls every page a candidate
+        empty.close();
+        empty.getFile().setLastModified(System.currentTimeMillis() + 10000);
+
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+    }
+
     /**
      * JUnit suite target
      */
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -85,6 +86,29 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() after changes: a page rebuilt from
+     * the bytes has the same tuples, and the bytes the page was created from
+     * are left alone.
+     */
+    @Test public void pageDataRoundTrip() throws Exception {
+        byte[] original = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.deleteTuple(page.iterator().next());
+        Tuple addition = Utility.getHeapTuple(new int[] {7, 42});
+        page.insertTuple(addition);
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Iterator<Tuple> expected = page.iterator();
+        Iterator<Tuple> actual = copy.iterator();
+        while (expected.hasNext()) {
+            assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+        }
+        assertEquals(false, actual.hasNext());
+        assertTrue(Arrays.equals(original, HeapPageReadTest.EXAMPLE_DATA));
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
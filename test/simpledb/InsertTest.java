@@ -56,6 +56,20 @@ public class InsertTest extends TestUtil.CreateHeapFile {
     assertEquals(1, empty.numPages());
   }
 
+  /**
+   * Opening an Insert takes an IX lock on its table.
+   */
+  @Test public void openLocksTable() throws Exception {
+    Insert op = new Insert(tid,scan1, empty.getId());
+    op.open();
+    assertEquals(LockMode.IX,
+        Database.getBufferPool().getLockManager().getTableLock(tid, empty.getId()));
+    op.next();
+    assertEquals(LockMode.IX,
+        Database.getBufferPool().getLockManager().getTableLock(tid, empty.getId()));
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
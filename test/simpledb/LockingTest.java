@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +188,143 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Reading more pages than the escalation threshold trades the page locks
+   * for a shared lock on the table, which still lets others read.
+   */
+  @Test public void readLocksEscalate() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockMode.IS, lm.getTableLock(tid1, empty.getId()));
+
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(LockMode.S, lm.getTableLock(tid1, empty.getId()));
+    assertEquals(1, lm.getEscalationCount());
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Writing more pages than the escalation threshold takes an exclusive
+   * lock on the table.
+   */
+  @Test public void writeLocksEscalate() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(LockMode.X, lm.getTableLock(tid1, empty.getId()));
+
+    grabLock(tid2, p0, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Escalation does not wait for other transactions: with another writer
+   * on the table, the reader just keeps taking page locks.
+   */
+  @Test public void escalationDoesNotWait() throws Exception {
+    LockManager lm = bp.getLockManager();
+    lm.setEscalationThreshold(1);
+    bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockMode.IS, lm.getTableLock(tid1, empty.getId()));
+    assertEquals(0, lm.getEscalationCount());
+
+    bp.transactionComplete(tid2);
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(LockMode.S, lm.getTableLock(tid1, empty.getId()));
+  }
+
+  /**
+   * Deleting single rows only locks the records, so two transactions can
+   * delete different rows of the same page, and aborting one of them keeps
+   * the other's delete.
+   */
+  @Test public void deletersShareAPage() throws Exception {
+    bp.getLockManager().setLockTimeout(TIMEOUT);
+    HeapPage page = (HeapPage) empty.readPage(p0);
+    Tuple t1 = page.getTuples().get(0);
+    Tuple t2 = page.getTuples().get(1);
+
+    bp.deleteTuple(tid1, t1);
+    bp.deleteTuple(tid2, t2);
+    assertTrue(bp.getLockManager().holdsLock(tid1, t1.getRecordId(), Permissions.READ_WRITE));
+    assertFalse(bp.getLockManager().holdsLock(tid2, t1.getRecordId(), Permissions.READ_ONLY));
+    assertEquals(LockMode.IX, bp.getLockManager().getTableLock(tid2, empty.getId()));
+
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, true);
+
+    page = (HeapPage) empty.readPage(p0);
+    assertTrue(page.isSlotUsed(t1.getRecordId().tupleno()));
+    assertFalse(page.isSlotUsed(t2.getRecordId().tupleno()));
+  }
+
+  /**
+   * Writing a page with two transactions' deletes logs each delete against
+   * the transaction that made it, so aborting one rolls its delete back on
+   * disk.
+   */
+  @Test public void sharedPageWritesLogEachDeleter() throws Exception {
+    HeapPage page = (HeapPage) empty.readPage(p0);
+    Tuple t1 = page.getTuples().get(0);
+    Tuple t2 = page.getTuples().get(1);
+
+    bp.deleteTuple(tid1, t1);
+    bp.deleteTuple(tid2, t2);
+    bp.flushAllPages();
+    assertTrue(Database.getLogFile().hasRecords(tid1));
+
+    bp.transactionComplete(tid1, false);
+    page = (HeapPage) empty.readPage(p0);
+    assertTrue(page.isSlotUsed(t1.getRecordId().tupleno()));
+
+    bp.transactionComplete(tid2, true);
+    page = (HeapPage) empty.readPage(p0);
+    assertTrue(page.isSlotUsed(t1.getRecordId().tupleno()));
+    assertFalse(page.isSlotUsed(t2.getRecordId().tupleno()));
+  }
+
+  /**
+   * Aborting a delete whose page was written after another transaction on
+   * the page committed its own delete keeps that committed delete on disk.
+   */
+  @Test public void abortAfterSharedPageCommit() throws Exception {
+    HeapPage page = (HeapPage) empty.readPage(p0);
+    int emptySlots = page.getNumEmptySlots();
+    Tuple t1 = page.getTuples().get(0);
+    Tuple t2 = page.getTuples().get(1);
+
+    bp.deleteTuple(tid1, t1);
+    bp.deleteTuple(tid2, t2);
+    bp.flushAllPages();
+    bp.transactionComplete(tid2, true);
+    bp.transactionComplete(tid1, false);
+
+    page = (HeapPage) empty.readPage(p0);
+    assertTrue(page.isSlotUsed(t1.getRecordId().tupleno()));
+    assertFalse(page.isSlotUsed(t2.getRecordId().tupleno()));
+    assertEquals(emptySlots + 1, page.getNumEmptySlots());
+  }
+
+  /**
+   * A page lock still conflicts with a delete of one of its rows.
+   */
+  @Test(expected = TransactionAbortedException.class)
+  public void pageLockBlocksRowDelete() throws Exception {
+    HeapPage page = (HeapPage) empty.readPage(p0);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getLockManager().setLockTimeout(TIMEOUT);
+    bp.deleteTuple(tid2, page.getTuples().get(0));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest extends TestUtil.CreateHeapFile {
+  private File file;
+  private File segment;
+  private LogFile log;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("logbuffer", ".log");
+    file.deleteOnExit();
+    segment = new File(file.getPath() + ".0");
+    segment.deleteOnExit();
+    log = new LogFile(file);
+  }
+
+  @After public void tearDown() {
+    file.delete();
+    segment.delete();
+  }
+
+  /**
+   * UPDATE records are found at the LSN logWrite returns, once the log
+   * buffer is written out, and many records go out in few writes.
+   */
+  @Test public void updatesReadBackAtTheirLsn() throws Exception {
+    HeapPageId pid = new HeapPageId(empty.getId(), 0);
+    HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+    HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+    after.insertTuple(Utility.getHeapTuple(7, 2));
+
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    long[] lsns = new long[50];
+    for (int i = 0; i < lsns.length; i++) {
+      lsns[i] = log.logWrite(tid, before, after);
+    }
+    assertEquals(0, log.getFileWriteCount());
+    log.force();
+    assertTrue(log.getFileWriteCount() <= 1);
+
+    RandomAccessFile in = new RandomAccessFile(segment, "r");
+    try {
+      for (long lsn : lsns) {
+        in.seek(lsn);
+        assertEquals(LogFile.UPDATE_RECORD, in.readInt());
+        assertEquals(tid.getId(), in.readLong());
+        PageUpdate update = PageUpdate.read(in);
+        assertArrayEquals(before.getPageData(), update.getBeforeImage(after).getPageData());
+        assertArrayEquals(after.getPageData(), update.getAfterImage(before).getPageData());
+        assertEquals(lsn, in.readLong());
+      }
+      assertEquals(segment.length(), in.getFilePointer());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogBufferTest.class);
+  }
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+  private static final int SEGMENT_SIZE = 256;
+  /** a BEGIN or COMMIT record */
+  private static final int RECORD_SIZE = LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE;
+
+  private File file;
+  private LogFile log;
+
+  @Before public void setUp() throws Exception {
+    file = File.createTempFile("segments", ".log");
+    file.deleteOnExit();
+    log = new LogFile(file, SEGMENT_SIZE);
+    log.setGroupCommit(false);
+  }
+
+  @After public void tearDown() throws Exception {
+    file.delete();
+    for (long n = 0; n < 100; n++) {
+      segment(n).delete();
+    }
+  }
+
+  private File segment(long n) {
+    return new File(file.getPath() + "." + n);
+  }
+
+  /** Logs n transactions that begin and commit right away. */
+  private void commit(int n) throws Exception {
+    for (int i = 0; i < n; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+  }
+
+  /**
+   * Records run on from one segment into the next, and a log opened again
+   * reads them all back, with the segment size it was written with.
+   */
+  @Test public void recordsSpanSegments() throws Exception {
+    commit(50);
+    long end = 100 * RECORD_SIZE;
+    assertEquals(end, log.getCurrentLsn());
+    assertEquals((end + SEGMENT_SIZE - 1) / SEGMENT_SIZE, log.getSegmentCount());
+    for (long n = 0; n < log.getSegmentCount() - 1; n++) {
+      assertEquals(SEGMENT_SIZE, segment(n).length());
+    }
+
+    LogFile reopened = new LogFile(file);
+    reopened.recover();
+    assertEquals(100, reopened.getLastRecovery().records);
+    assertEquals(end, reopened.getCurrentLsn());
+    assertEquals(log.getSegmentCount(), reopened.getSegmentCount());
+  }
+
+  /**
+   * A checkpoint deletes the segments before it, without moving anything
+   * else, so LSNs stay the same.
+   */
+  @Test public void truncationDeletesOldSegments() throws Exception {
+    commit(50);
+    long segments = log.getSegmentCount();
+    log.logCheckpoint();
+    long cp = log.getCurrentLsn();
+    assertTrue(log.getSegmentCount() < segments);
+    assertFalse(segment(0).exists());
+    assertTrue(segment((cp - 1) / SEGMENT_SIZE).exists());
+
+    commit(1);
+    assertEquals(cp + 2 * RECORD_SIZE, log.getCurrentLsn());
+    LogFile reopened = new LogFile(file);
+    reopened.recover();
+    assertEquals(3, reopened.getLastRecovery().records);
+  }
+
+  /**
+   * The segment with the first record of a transaction that is still
+   * running at the checkpoint is kept, and so are all after it.
+   */
+  @Test public void keepsSegmentsOfRunningTransactions() throws Exception {
+    commit(20);
+    TransactionId running = new TransactionId();
+    long first = log.getCurrentLsn();
+    log.logXactionBegin(running);
+    commit(20);
+    log.logCheckpoint();
+    assertFalse(segment(first / SEGMENT_SIZE - 1).exists());
+    for (long n = first / SEGMENT_SIZE; n * SEGMENT_SIZE < log.getCurrentLsn(); n++) {
+      assertTrue(segment(n).exists());
+    }
+
+    LogFile reopened = new LogFile(file);
+    reopened.recover();
+    assertEquals(1, reopened.getLastRecovery().losers);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogSegmentsTest.class);
+  }
+}
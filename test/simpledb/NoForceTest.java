@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SystemTestUtil;
+
+public class NoForceTest extends TestUtil.CreateCommittedPage {
+  private LogFile log;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    log = Database.getLogFile();
+  }
+
+  /** Deletes the first tuple of p0 and commits, under NO FORCE. */
+  private void deleteAndCommit() throws Exception {
+    bp.setNoForce(true);
+    Transaction t = new Transaction();
+    t.start();
+    deleteFirstTuple(t.getId());
+    t.commit();
+  }
+
+  /**
+   * A commit returns without writing the page; the page writer writes it
+   * afterwards.
+   */
+  @Test public void commitLeavesPagesToWriter() throws Exception {
+    ReentrantLock writes = bp.pageWriteLock(p0);
+    writes.lock();
+    try {
+      deleteAndCommit();
+      assertEquals(emptySlots, ((HeapPage) empty.readPage(p0)).getNumEmptySlots());
+      assertEquals(1, log.getDirtyPageCount());
+    } finally {
+      writes.unlock();
+    }
+
+    bp.drainPageWriter();
+    assertEquals(1, bp.getBackgroundWriteCount());
+    assertEquals(0, log.getDirtyPageCount());
+    assertEquals(emptySlots + 1, ((HeapPage) empty.readPage(p0)).getNumEmptySlots());
+  }
+
+  /**
+   * A committed page that is not on disk yet is written when it is
+   * evicted, so that reading it in again gets the committed image.
+   */
+  @Test public void evictionWritesBack() throws Exception {
+    HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    bp = Database.resetBufferPool(1);
+    ReentrantLock writes = bp.pageWriteLock(p0);
+    writes.lock();
+    try {
+      deleteAndCommit();
+      TransactionId tid = new TransactionId();
+      bp.getPage(tid, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+      assertEquals(emptySlots + 1, ((HeapPage) empty.readPage(p0)).getNumEmptySlots());
+      assertEquals(0, log.getDirtyPageCount());
+
+      HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+      assertEquals(emptySlots + 1, page.getNumEmptySlots());
+      bp.transactionComplete(tid);
+    } finally {
+      writes.unlock();
+    }
+
+    bp.drainPageWriter();
+    assertEquals(0, bp.getBackgroundWriteCount());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(NoForceTest.class);
+  }
+}
@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageUpdateTest extends TestUtil.CreateHeapFile {
+  private HeapPageId pid;
+  private HeapPage before;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    pid = new HeapPageId(empty.getId(), 3);
+    before = new HeapPage(pid, HeapPage.createEmptyPageData());
+    for (int i = 0; i < 100; i++) {
+      before.insertTuple(Utility.getHeapTuple(i, 2));
+    }
+  }
+
+  private static byte[] encode(PageUpdate update) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    update.write(new DataOutputStream(bytes));
+    return bytes.toByteArray();
+  }
+
+  private static PageUpdate decode(byte[] encoded) throws Exception {
+    return PageUpdate.read(new DataInputStream(new ByteArrayInputStream(encoded)));
+  }
+
+  /**
+   * Deleting a tuple is logged as a few changed bytes, and either image can
+   * be rebuilt from the page in the other state.
+   */
+  @Test public void smallChangesAreDeltas() throws Exception {
+    HeapPage after = new HeapPage(pid, before.getPageData());
+    after.deleteTuple(after.getTuples().get(50));
+
+    byte[] encoded = encode(PageUpdate.diff(before, after));
+    assertTrue("delta of " + encoded.length + " bytes", encoded.length < 64);
+
+    PageUpdate update = decode(encoded);
+    assertFalse(update.isFullImage());
+    assertEquals(pid, update.getPageId());
+    assertArrayEquals(before.getPageData(), update.getBeforeImage(after).getPageData());
+    assertArrayEquals(before.getPageData(), update.getBeforeImage(before).getPageData());
+    assertArrayEquals(after.getPageData(), update.getAfterImage(before).getPageData());
+    assertArrayEquals(after.getPageData(), update.getAfterImage(after).getPageData());
+  }
+
+  /**
+   * A change to most of the page is logged as both whole images.
+   */
+  @Test public void largeChangesAreFullImages() throws Exception {
+    byte[] data = new byte[BufferPool.PAGE_SIZE];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 7 + 1);
+    }
+    HeapPage after = new HeapPage(pid, data);
+
+    PageUpdate update = decode(encode(PageUpdate.diff(before, after)));
+    assertTrue(update.isFullImage());
+    assertArrayEquals(before.getPageData(), update.getBeforeImage(null).getPageData());
+    assertArrayEquals(after.getPageData(), update.getAfterImage(null).getPageData());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PageUpdateTest.class);
+  }
+}
@@ -0,0 +1,88 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotTest extends TestUtil.CreateCommittedPage {
+  private TransactionId writer, reader;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    writer = new TransactionId();
+    reader = new TransactionId();
+  }
+
+  private int emptySlots(TransactionId tid) throws Exception {
+    return ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).getNumEmptySlots();
+  }
+
+  /**
+   * A snapshot reader neither waits for nor sees a writer's uncommitted
+   * changes, and takes no locks.
+   */
+  @Test public void readsDoNotWaitForWriters() throws Exception {
+    deleteFirstTuple(writer);
+    bp.beginSnapshot(reader);
+    assertEquals(emptySlots, emptySlots(reader));
+    assertFalse(bp.holdsLock(reader, p0));
+  }
+
+  /**
+   * A snapshot keeps seeing pages as they were when it started, while
+   * snapshots started after a commit see it.
+   */
+  @Test public void laterCommitsAreInvisible() throws Exception {
+    bp.beginSnapshot(reader);
+    assertEquals(emptySlots, emptySlots(reader));
+    deleteFirstTuple(writer);
+    bp.transactionComplete(writer, true);
+    assertEquals(emptySlots, emptySlots(reader));
+
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    assertEquals(emptySlots + 1, emptySlots(later));
+  }
+
+  /**
+   * Old versions are kept only as long as a running snapshot needs them.
+   */
+  @Test public void oldVersionsAreCollected() throws Exception {
+    VersionStore versions = bp.getVersionStore();
+    deleteFirstTuple(writer);
+    bp.transactionComplete(writer, true);
+    assertEquals(0, versions.getVersionCount());
+
+    bp.beginSnapshot(reader);
+    writer = new TransactionId();
+    deleteFirstTuple(writer);
+    bp.transactionComplete(writer, true);
+    assertEquals(1, versions.getVersionCount());
+
+    bp.transactionComplete(reader, true);
+    assertEquals(0, versions.getVersionCount());
+    assertEquals(0, versions.getSnapshotCount());
+  }
+
+  /**
+   * Snapshot transactions cannot write.
+   */
+  @Test(expected = DbException.class)
+  public void snapshotsAreReadOnly() throws Exception {
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotTest.class);
+  }
+
+}
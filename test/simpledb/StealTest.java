@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SystemTestUtil;
+
+public class StealTest extends TestUtil.CreateCommittedPage {
+  private static final int POOL_PAGES = 3;
+  /** enough tuples to fill more pages than the pool holds */
+  private static final int BULK = 504 * (POOL_PAGES + 3);
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(POOL_PAGES);
+  }
+
+  /** @return the number of tuples in the file, as it is on disk */
+  private int tuplesOnDisk() {
+    int tuples = 0;
+    for (int i = 0; i < empty.numPages(); i++) {
+      HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), i));
+      tuples += 504 - page.getNumEmptySlots();
+    }
+    return tuples;
+  }
+
+  private Transaction bulkInsert() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    for (int i = 0; i < BULK; ++i) {
+      bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+    }
+    return t;
+  }
+
+  /**
+   * A transaction can insert more pages' worth of tuples than the pool
+   * holds, and they all commit.
+   */
+  @Test public void insertsMorePagesThanThePoolHolds() throws Exception {
+    Transaction t = bulkInsert();
+    assertTrue(bp.getStealCount() > 0);
+    t.commit();
+    assertEquals(10 + BULK, tuplesOnDisk());
+  }
+
+  /**
+   * A transaction can delete tuples from more pages than the pool holds.
+   */
+  @Test public void deletesFromMorePagesThanThePoolHolds() throws Exception {
+    bulkInsert().commit();
+    long steals = bp.getStealCount();
+
+    Transaction t = new Transaction();
+    t.start();
+    for (int i = 0; i < empty.numPages(); i++) {
+      HeapPage page = (HeapPage) bp.getPage(t.getId(), new HeapPageId(empty.getId(), i), Permissions.READ_WRITE);
+      List<Tuple> tuples = new ArrayList<Tuple>();
+      for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+        tuples.add(it.next());
+      }
+      for (Tuple tuple : tuples) {
+        bp.deleteTuple(t.getId(), tuple);
+      }
+    }
+    assertTrue(bp.getStealCount() > steals);
+    t.commit();
+    assertEquals(0, tuplesOnDisk());
+  }
+
+  /**
+   * Aborting rolls back the stolen pages on disk, and the pages read in
+   * again meanwhile in the pool.
+   */
+  @Test public void abortRollsBackStolenPages() throws Exception {
+    Transaction t = bulkInsert();
+    HeapPage page = (HeapPage) bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+    assertEquals(0, page.getNumEmptySlots());
+    t.transactionComplete(true);
+    assertEquals(10, tuplesOnDisk());
+
+    TransactionId tid = new TransactionId();
+    page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+    assertEquals(504 - 10, page.getNumEmptySlots());
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * A snapshot reads the committed image of a page that was stolen.
+   */
+  @Test public void snapshotsSeeCommittedImage() throws Exception {
+    Transaction t = bulkInsert();
+    assertTrue(bp.getStealCount() > 0);
+    Transaction snapshot = new Transaction();
+    snapshot.startSnapshot();
+    HeapPage page = (HeapPage) bp.getPage(snapshot.getId(), p0, Permissions.READ_ONLY);
+    assertEquals(504 - 10, page.getNumEmptySlots());
+    snapshot.commit();
+    t.commit();
+  }
+
+  /**
+   * A delete whose page is evicted after the record is locked but before
+   * the tuple is deleted lands on the page read in again.
+   */
+  @Test public void deleteAfterEviction() throws Exception {
+    final HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    final boolean[] armed = new boolean[1];
+    bp = Database.resetBufferPool(1, new ClockReplacementPolicy(1) {
+      public void pageAccessed(PageId pid) {
+        super.pageAccessed(pid);
+        if (armed[0] && pid.equals(p0)) {
+          armed[0] = false;
+          // reading another page in evicts p0
+          try {
+            TransactionId reader = new TransactionId();
+            Database.getBufferPool().getPage(reader, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+            Database.getBufferPool().transactionComplete(reader);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    });
+    TransactionId reader = new TransactionId();
+    Tuple first = ((HeapPage) bp.getPage(reader, p0, Permissions.READ_ONLY)).iterator().next();
+    bp.transactionComplete(reader);
+
+    Transaction t = new Transaction();
+    t.start();
+    armed[0] = true;
+    bp.deleteTuple(t.getId(), first);
+    assertFalse(armed[0]);
+    t.commit();
+    assertEquals(emptySlots + 1, ((HeapPage) empty.readPage(p0)).getNumEmptySlots());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StealTest.class);
+  }
+}
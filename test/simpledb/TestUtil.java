@@ -379,6 +379,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            FreeSpaceMap.sidecarFor(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
@@ -393,4 +394,42 @@ public class TestUtil {
         protected HeapFile empty;
         private final File emptyFile;
     }
+
+    /**
+     * JUnit fixture that creates a heap file whose first page holds ten
+     * committed tuples, with a fresh buffer pool.
+     */
+    public static abstract class CreateCommittedPage extends CreateHeapFile {
+        protected BufferPool bp;
+        /** the page holding the tuples */
+        protected PageId p0;
+        /** the number of empty slots of p0 on disk after setUp */
+        protected int emptySlots;
+
+        protected void setUp() throws Exception {
+            super.setUp();
+            bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < 10; ++i) {
+                bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+            }
+            t.commit();
+            p0 = new HeapPageId(empty.getId(), 0);
+            emptySlots = ((HeapPage) empty.readPage(p0)).getNumEmptySlots();
+        }
+
+        /**
+         * Deletes the first tuple of p0 on behalf of tid, without
+         * committing.
+         *
+         * @return the page it was deleted from
+         */
+        protected HeapPage deleteFirstTuple(TransactionId tid) throws Exception {
+            HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+            bp.deleteTuple(tid, page.iterator().next());
+            return page;
+        }
+    }
 }
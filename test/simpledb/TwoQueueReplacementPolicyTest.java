@@ -0,0 +1,95 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TwoQueueReplacementPolicyTest extends SimpleDbTestBase {
+
+    private TwoQueueReplacementPolicy twoQueue;
+    private final ReplacementPolicy.Evictable any = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static PageId page(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /** Loads a page and evicts whatever the policy picks. */
+    private PageId load(int pgNo) {
+        twoQueue.pageAdded(page(pgNo));
+        PageId victim = twoQueue.chooseVictim(any);
+        twoQueue.pageRemoved(victim);
+        return victim;
+    }
+
+    @Before public void createPolicy() {
+        // pool of 4 pages, A1in target of 1 page, 4 ghost entries
+        twoQueue = new TwoQueueReplacementPolicy(4, 1, 4);
+    }
+
+    /**
+     * Pages seen once are evicted in FIFO order, however often they are hit.
+     */
+    @Test public void firstTimePagesAreFifo() {
+        twoQueue.pageAdded(page(0));
+        twoQueue.pageAdded(page(1));
+        twoQueue.pageAccessed(page(0));
+        twoQueue.pageAccessed(page(0));
+        assertEquals(page(0), twoQueue.chooseVictim(any));
+    }
+
+    /**
+     * A page read in again while remembered in A1out goes to Am, and a stream
+     * of new pages is then evicted ahead of it.
+     */
+    @Test public void reusedPagesSurviveScans() {
+        twoQueue.pageAdded(page(0));
+        assertEquals(page(0), load(1));
+        // page 0 comes back while still in A1out
+        twoQueue.pageAdded(page(0));
+        for (int i = 2; i < 20; i++) {
+            PageId victim = load(i);
+            assertEquals(false, victim.equals(page(0)));
+        }
+    }
+
+    /**
+     * A hit on a page in Am, which only notes the page, still keeps it
+     * from being the next victim.
+     */
+    @Test public void hitsInAmCountAtEviction() {
+        twoQueue.pageAdded(page(0));
+        twoQueue.pageAdded(page(1));
+        twoQueue.pageRemoved(twoQueue.chooseVictim(any));
+        twoQueue.pageRemoved(twoQueue.chooseVictim(any));
+        // both come back from A1out into Am, page 0 first
+        twoQueue.pageAdded(page(0));
+        twoQueue.pageAdded(page(1));
+        twoQueue.pageAccessed(page(0));
+        assertEquals(page(1), twoQueue.chooseVictim(any));
+    }
+
+    /**
+     * Removing the last tracked page leaves nothing to evict.
+     */
+    @Test public void emptyPolicyHasNoVictim() {
+        twoQueue.pageAdded(page(0));
+        twoQueue.pageRemoved(page(0));
+        assertNull(twoQueue.chooseVictim(any));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TwoQueueReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb.bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Runs concurrent sequential scans over a table that fits in the buffer pool
+ * and reports how page throughput scales with the number of scanning threads.
+ * Every page access after the warm-up scan is a buffer pool hit, so the
+ * numbers reflect the cost of the page table rather than of disk reads.
+ * <p>
+ * Usage: BufferPoolScanBenchmark [tablePages] [scansPerThread]
+ */
+public class BufferPoolScanBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int tablePages = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int scansPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        Database.reset();
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, tablePages * TUPLES_PER_PAGE, null, null);
+        Database.resetBufferPool(tablePages * 2);
+        scan(f, new TransactionId());
+
+        System.out.println("table pages: " + f.numPages() + ", cores: " + cores);
+        System.out.println("threads\tpages/s\tspeedup");
+        double base = 0;
+        for (int threads = 1; threads <= cores * 2; threads *= 2) {
+            double rate = run(f, threads, scansPerThread);
+            if (base == 0) {
+                base = rate;
+            }
+            System.out.printf("%d\t%.0f\t%.2f%n", threads, rate, rate / base);
+        }
+    }
+
+    /** @return pages per second over all threads */
+    private static double run(final HeapFile f, int threads, final int scans) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int s = 0; s < scans; s++) {
+                            TransactionId tid = new TransactionId();
+                            scan(f, tid);
+                            Database.getBufferPool().transactionComplete(tid);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        return (double) threads * scans * f.numPages() / seconds;
+    }
+
+    private static void scan(HeapFile f, TransactionId tid) throws DbException, TransactionAbortedException {
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+    }
+}
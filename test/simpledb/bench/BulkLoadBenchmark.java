@@ -0,0 +1,51 @@
+package simpledb.bench;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Inserts many tuples into an empty table in a single transaction, with
+ * buffer pools of different sizes, and reports how long the insert and the
+ * commit took and how many pages had to be evicted with uncommitted
+ * changes, or that the transaction failed.
+ * <p>
+ * Usage: BulkLoadBenchmark [tuples] [pool pages,...]
+ */
+public class BulkLoadBenchmark {
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        String[] pools = (args.length > 1 ? args[1] : "1000,100,10").split(",");
+        for (String pages : pools) {
+            run(tuples, Integer.parseInt(pages));
+        }
+    }
+
+    private static void run(int tuples, int poolPages) throws Exception {
+        Database.reset();
+        File file = File.createTempFile("bulkload", ".dat");
+        file.deleteOnExit();
+        HeapFile f = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        BufferPool bp = Database.resetBufferPool(poolPages);
+
+        Transaction t = new Transaction();
+        t.start();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < tuples; i++) {
+                bp.insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(i, 2));
+            }
+        } catch (DbException e) {
+            System.out.printf("%d tuples, %d page pool: failed after %.0f ms: %s%n",
+                              tuples, poolPages, (System.nanoTime() - start) / 1e6, e.getMessage());
+            t.transactionComplete(true);
+            return;
+        }
+        long inserted = System.nanoTime();
+        t.commit();
+        long committed = System.nanoTime();
+        System.out.printf("%d tuples (%d pages), %d page pool: insert %.0f ms, commit %.0f ms, %d pages stolen%n",
+                          tuples, f.numPages(), poolPages, (inserted - start) / 1e6,
+                          (committed - inserted) / 1e6, bp.getStealCount());
+    }
+}
@@ -0,0 +1,138 @@
+package simpledb.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Runs short update transactions from several threads while another
+ * thread takes a checkpoint every so often, and reports the latency of the
+ * transactions and how long the checkpoints took.
+ * <p>
+ * Each short transaction deletes one tuple from a random page of one table
+ * and commits. Meanwhile a long transaction keeps a tuple deleted on every
+ * page of a second table, so there are that many dirty pages in the pool
+ * whenever a checkpoint is taken.
+ * <p>
+ * Usage: CheckpointBenchmark [threads] [seconds] [checkpoint interval ms] [dirty pages]
+ */
+public class CheckpointBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int PAGES = 256;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final long interval = args.length > 2 ? Long.parseLong(args[2]) : 500;
+        int dirtyPages = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+
+        Database.reset();
+        final HeapFile updated = SystemTestUtil.createRandomHeapFile(2, PAGES * TUPLES_PER_PAGE, null, null);
+        HeapFile held = SystemTestUtil.createRandomHeapFile(2, dirtyPages * TUPLES_PER_PAGE, null, null);
+        final BufferPool bp = Database.resetBufferPool(2 * (PAGES + dirtyPages));
+
+        Transaction longRunning = new Transaction();
+        longRunning.start();
+        for (int i = 0; i < dirtyPages; i++) {
+            deleteOne(bp, longRunning, new HeapPageId(held.getId(), i));
+        }
+
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final List<long[]> latencies = new ArrayList<>();
+        final int[] aborted = new int[1];
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final Random r = new Random(i);
+            new Thread() {
+                public void run() {
+                    long[] mine = new long[1024];
+                    int n = 0;
+                    try {
+                        while (System.nanoTime() < end) {
+                            long start = System.nanoTime();
+                            Transaction t = new Transaction();
+                            t.start();
+                            try {
+                                deleteOne(bp, t, new HeapPageId(updated.getId(), r.nextInt(PAGES)));
+                                t.commit();
+                            } catch (TransactionAbortedException e) {
+                                t.transactionComplete(true);
+                                synchronized (aborted) {
+                                    aborted[0]++;
+                                }
+                                continue;
+                            }
+                            if (n == mine.length) {
+                                mine = Arrays.copyOf(mine, 2 * n);
+                            }
+                            mine[n++] = System.nanoTime() - start;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        synchronized (latencies) {
+                            latencies.add(Arrays.copyOf(mine, n));
+                        }
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        List<Long> checkpoints = new ArrayList<>();
+        while (System.nanoTime() + interval * 1000000L < end) {
+            Thread.sleep(interval);
+            long start = System.nanoTime();
+            Database.getLogFile().logCheckpoint();
+            checkpoints.add(System.nanoTime() - start);
+        }
+        done.await();
+        longRunning.transactionComplete(true);
+
+        int total = 0;
+        for (long[] l : latencies) {
+            total += l.length;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (long[] l : latencies) {
+            System.arraycopy(l, 0, all, pos, l.length);
+            pos += l.length;
+        }
+        Arrays.sort(all);
+        System.out.printf("%d threads, %d dirty pages, checkpoint every %d ms: %d commits (%.0f/s), %d aborted%n",
+                          threads, dirtyPages, interval, total, total / (double) seconds, aborted[0]);
+        System.out.printf("transaction latency p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                          percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999),
+                          all.length == 0 ? 0 : all[all.length - 1] / 1e6);
+        long sum = 0;
+        long max = 0;
+        for (long c : checkpoints) {
+            sum += c;
+            max = Math.max(max, c);
+        }
+        System.out.printf("%d checkpoints, average %.2f ms, max %.2f ms%n", checkpoints.size(),
+                          checkpoints.isEmpty() ? 0 : sum / 1e6 / checkpoints.size(), max / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+
+    private static void deleteOne(BufferPool bp, Transaction t, PageId pid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        if (it.hasNext()) {
+            bp.deleteTuple(t.getId(), it.next());
+        }
+    }
+}
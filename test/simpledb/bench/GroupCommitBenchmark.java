@@ -0,0 +1,74 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Logs empty transactions (a BEGIN and a COMMIT record each) from several
+ * threads into a scratch log file, and reports the commit rate, how many
+ * commits shared an fsync and how long logCommit took.
+ * <p>
+ * mode is "group" (one flusher thread forces batches of commits), "single"
+ * (every commit forces the log itself) or "both".
+ * <p>
+ * Usage: GroupCommitBenchmark [threads] [seconds] [mode]
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String mode = args.length > 2 ? args[2] : "both";
+
+        if (mode.equals("both")) {
+            run(threads, seconds, false);
+            run(threads, seconds, true);
+        } else {
+            run(threads, seconds, mode.equals("group"));
+        }
+    }
+
+    private static void run(int threads, int seconds, boolean group) throws Exception {
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        final LogFile log = new LogFile(f);
+        log.setGroupCommit(group);
+
+        final AtomicLong commits = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        while (System.nanoTime() < end) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                            commits.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+
+        System.out.printf("%s commit: threads %d%n", group ? "group" : "single", threads);
+        System.out.printf("commits/s %.0f, commit us: avg %.0f, max %d%n",
+                          commits.get() / (double) seconds,
+                          log.getAverageCommitMicros(), log.getMaxCommitMicros());
+        if (group) {
+            System.out.printf("flushes/s %.0f, commits per flush: avg %.1f, max %d%n",
+                              log.getGroupFlushCount() / (double) seconds,
+                              log.getAverageGroupSize(), log.getLargestGroupSize());
+        }
+        f.delete();
+    }
+}
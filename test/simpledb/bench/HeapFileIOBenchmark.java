@@ -0,0 +1,104 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares random page reads through HeapFile's shared FileChannel with the
+ * old way of opening a RandomAccessFile, seeking and closing it for every
+ * page, for one and several threads. Both read the same pages of the same
+ * file, so the difference is the per-page open/close and seek cost. The
+ * last column reads through a memory mapped HeapFile, which parses pages in
+ * place instead of copying them out with a read call.
+ * <p>
+ * Usage: HeapFileIOBenchmark [tablePages] [readsPerThread]
+ */
+public class HeapFileIOBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private interface PageReader {
+        void read(int pgNo) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tablePages = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        Database.reset();
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, tablePages * TUPLES_PER_PAGE, null, null);
+        final File file = f.getFile();
+        final int tableId = f.getId();
+
+        PageReader reopen = new PageReader() {
+            public void read(int pgNo) throws Exception {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                byte[] data = new byte[BufferPool.PAGE_SIZE];
+                raf.seek((long) BufferPool.PAGE_SIZE * pgNo);
+                raf.read(data, 0, BufferPool.PAGE_SIZE);
+                raf.close();
+                new HeapPage(new HeapPageId(tableId, pgNo), data);
+            }
+        };
+        PageReader channel = new PageReader() {
+            public void read(int pgNo) throws Exception {
+                f.readPage(new HeapPageId(tableId, pgNo));
+            }
+        };
+        final HeapFile mappedFile = new HeapFile(file, f.getTupleDesc(), true);
+        PageReader mapped = new PageReader() {
+            public void read(int pgNo) throws Exception {
+                mappedFile.readPage(new HeapPageId(tableId, pgNo));
+            }
+        };
+
+        // warm up the JIT for all paths
+        run(reopen, tablePages, 1, reads / 4);
+        run(channel, tablePages, 1, reads / 4);
+        run(mapped, tablePages, 1, reads / 4);
+
+        System.out.println("threads\treopen pages/s\tchannel pages/s\tmmap pages/s");
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(4, cores); threads *= 2) {
+            System.out.printf("%d\t%.0f\t%.0f\t%.0f%n", threads,
+                              run(reopen, tablePages, threads, reads),
+                              run(channel, tablePages, threads, reads),
+                              run(mapped, tablePages, threads, reads));
+        }
+        f.close();
+        mappedFile.close();
+    }
+
+    /** @return pages read per second over all threads */
+    private static double run(final PageReader reader, final int tablePages, int threads, final int reads)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            new Thread() {
+                public void run() {
+                    Random r = new Random(seed);
+                    try {
+                        start.await();
+                        for (int n = 0; n < reads; n++) {
+                            reader.read(r.nextInt(tablePages));
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return (double) threads * reads / ((System.nanoTime() - begin) / 1e9);
+    }
+}
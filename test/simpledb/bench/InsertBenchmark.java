@@ -0,0 +1,78 @@
+package simpledb.bench;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Measures insert heavy loads at two levels. The page level part fills and
+ * empties a HeapPage over and over, which is dominated by the slot header
+ * operations (free slot search, free space checks). The table level part
+ * inserts tuples through the BufferPool into a growing table, committing
+ * every batch, and reports the rate per batch so that any dependence of the
+ * insert cost on the table size shows up as a falling rate.
+ * <p>
+ * Usage: InsertBenchmark [pageRounds] [tableTuples] [batchSize]
+ */
+public class InsertBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pageRounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int tableTuples = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+
+        Database.reset();
+        pageLevel(pageRounds / 10);
+        System.out.printf("page level: %.0f inserts/s%n", pageLevel(pageRounds));
+        tableLevel(tableTuples, batchSize);
+    }
+
+    /** @return tuples inserted per second */
+    private static double pageLevel(int rounds) throws Exception {
+        File file = File.createTempFile("insertbench", ".dat");
+        file.deleteOnExit();
+        HeapFile f = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple[] slots = new Tuple[page.getNumEmptySlots()];
+
+        long inserts = 0;
+        long begin = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            int n = 0;
+            while (page.getNumEmptySlots() > 0) {
+                Tuple t = Utility.getHeapTuple(new int[] {r, n});
+                page.insertTuple(t);
+                slots[n++] = t;
+            }
+            inserts += n;
+            // free every other slot so the next round has to search for gaps
+            for (int i = 0; i < n; i += 2) {
+                page.deleteTuple(slots[i]);
+            }
+            for (int i = 1; i < n; i += 2) {
+                page.deleteTuple(slots[i]);
+            }
+        }
+        return inserts / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    private static void tableLevel(int tuples, int batchSize) throws Exception {
+        File file = File.createTempFile("insertbench", ".dat");
+        file.deleteOnExit();
+        HeapFile f = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        BufferPool bp = Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, tuples / 400));
+
+        System.out.println("table pages\tinserts/s");
+        for (int done = 0; done < tuples; done += batchSize) {
+            TransactionId tid = new TransactionId();
+            long begin = System.nanoTime();
+            for (int i = 0; i < batchSize; i++) {
+                bp.insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[] {done + i, i}));
+            }
+            bp.transactionComplete(tid);
+            double rate = batchSize / ((System.nanoTime() - begin) / 1e9);
+            System.out.printf("%d\t%.0f%n", f.numPages(), rate);
+        }
+    }
+}
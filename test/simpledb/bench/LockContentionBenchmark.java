@@ -0,0 +1,143 @@
+package simpledb.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Runs short transactions from several threads against a few hot pages and
+ * reports commit and abort rates and the distribution of the time spent in
+ * BufferPool.getPage waiting for page locks. Pages are all cached after the
+ * first access, so the times are almost entirely lock waits.
+ * <p>
+ * Each transaction locks locksPerTxn random pages, each in exclusive mode
+ * with probability writeFraction, and then commits. Transactions that are
+ * aborted are rolled back and counted, and the thread starts a new one.
+ * With ordered set, every transaction locks its pages in page number order,
+ * which rules out deadlocks other than between two lock upgrades.
+ * <p>
+ * mode is one of the LockManager.DeadlockMode names, or "all" to run the
+ * same load once with each of them.
+ * <p>
+ * Usage: LockContentionBenchmark [threads] [pages] [locksPerTxn] [writeFraction] [seconds] [ordered] [mode]
+ */
+public class LockContentionBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int locksPerTxn = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        double writeFraction = args.length > 3 ? Double.parseDouble(args[3]) : 0.2;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        boolean ordered = args.length > 5 && Boolean.parseBoolean(args[5]);
+        String mode = args.length > 6 ? args[6] : LockManager.DeadlockMode.DETECT.name();
+
+        if (mode.equals("all")) {
+            for (LockManager.DeadlockMode m : LockManager.DeadlockMode.values()) {
+                run(threads, pages, locksPerTxn, writeFraction, seconds, ordered, m);
+            }
+        } else {
+            run(threads, pages, locksPerTxn, writeFraction, seconds, ordered,
+                LockManager.DeadlockMode.valueOf(mode));
+        }
+    }
+
+    private static void run(int threads, final int pages, final int locksPerTxn,
+                            final double writeFraction, int seconds, final boolean ordered,
+                            LockManager.DeadlockMode mode) throws Exception {
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, pages * TUPLES_PER_PAGE, null, null);
+        final int tableId = f.getId();
+        final BufferPool bp = Database.resetBufferPool(pages * 2);
+        bp.getLockManager().setDeadlockMode(mode);
+
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final List<long[]> waits = new ArrayList<>();
+        final int[] waitCounts = new int[threads];
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long end = System.nanoTime() + seconds * 1000000000L;
+
+        for (int i = 0; i < threads; i++) {
+            final long[] mine = new long[1 << 20];
+            final int id = i;
+            waits.add(mine);
+            new Thread() {
+                public void run() {
+                    Random r = new Random(id);
+                    int n = 0;
+                    try {
+                        while (System.nanoTime() < end) {
+                            TransactionId tid = new TransactionId();
+                            int[] pgNos = new int[locksPerTxn];
+                            for (int l = 0; l < locksPerTxn; l++) {
+                                pgNos[l] = r.nextInt(pages);
+                            }
+                            if (ordered) {
+                                Arrays.sort(pgNos);
+                            }
+                            try {
+                                for (int l = 0; l < locksPerTxn; l++) {
+                                    PageId pid = new HeapPageId(tableId, pgNos[l]);
+                                    Permissions perm = r.nextDouble() < writeFraction
+                                        ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                                    long begin = System.nanoTime();
+                                    bp.getPage(tid, pid, perm);
+                                    if (n < mine.length) {
+                                        mine[n++] = System.nanoTime() - begin;
+                                    }
+                                }
+                                bp.transactionComplete(tid, true);
+                                commits.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                bp.transactionComplete(tid, false);
+                                aborts.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        waitCounts[id] = n;
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+
+        int total = 0;
+        for (int c : waitCounts) {
+            total += c;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (int i = 0; i < threads; i++) {
+            System.arraycopy(waits.get(i), 0, all, pos, waitCounts[i]);
+            pos += waitCounts[i];
+        }
+        Arrays.sort(all);
+
+        System.out.printf("%s: threads %d, pages %d, locks/txn %d, write fraction %.2f%s%n",
+                          mode, threads, pages, locksPerTxn, writeFraction, ordered ? ", ordered" : "");
+        System.out.printf("commits/s %.0f, aborts/s %.0f%n",
+                          commits.get() / (double) seconds, aborts.get() / (double) seconds);
+        System.out.println("lock wait us: p50 " + micros(all, 0.50) + ", p90 " + micros(all, 0.90)
+                           + ", p99 " + micros(all, 0.99) + ", p99.9 " + micros(all, 0.999)
+                           + ", max " + micros(all, 1.0));
+    }
+
+    private static long micros(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1000;
+    }
+}
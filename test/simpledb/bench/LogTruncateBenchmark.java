@@ -0,0 +1,95 @@
+package simpledb.bench;
+
+import java.io.File;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Times checkpoints that truncate a log of a given size, and how long a
+ * commit made by another thread meanwhile has to wait.
+ * <p>
+ * The log is filled with update transactions on a page that is then
+ * dropped from the pool, as if it had been written, except that one long
+ * transaction begins after 60% of them and is still running at the
+ * checkpoint, so truncation has to keep the last 40% of the log.
+ * <p>
+ * Usage: LogTruncateBenchmark [MB,...]
+ */
+public class LogTruncateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "8,32,128").split(",");
+        for (String mb : sizes) {
+            run(Integer.parseInt(mb));
+        }
+    }
+
+    private static void run(int mb) throws Exception {
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2 * 504, null, null);
+        final LogFile log = Database.getLogFile();
+        File dir = new File("log").getAbsoluteFile().getParentFile();
+
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(7, 2));
+
+        long bytes = mb * (1L << 20);
+        TransactionId longRunning = null;
+        while (log.getTotalRecords() == 0 || logBytes(dir) < bytes) {
+            if (longRunning == null && logBytes(dir) >= bytes * 6 / 10) {
+                longRunning = new TransactionId();
+                log.logXactionBegin(longRunning);
+            }
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int i = 0; i < 100; i++) {
+                log.logWrite(tid, before, after);
+            }
+            log.logCommit(tid);
+        }
+
+        // evicting the page clean takes it out of the dirty page table
+        BufferPool bp = Database.resetBufferPool(1);
+        TransactionId reader = new TransactionId();
+        bp.getPage(reader, pid, Permissions.READ_ONLY);
+        bp.getPage(reader, new HeapPageId(table.getId(), 1), Permissions.READ_ONLY);
+        bp.transactionComplete(reader);
+
+        final long[] commitNanos = new long[1];
+        Thread committer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(1);
+                    long start = System.nanoTime();
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    log.logCommit(tid);
+                    commitNanos[0] = System.nanoTime() - start;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        long start = System.nanoTime();
+        committer.start();
+        log.logCheckpoint();
+        long nanos = System.nanoTime() - start;
+        committer.join();
+        System.out.printf("%d MB log: checkpoint %.1f ms, log left %d MB, concurrent commit %.1f ms%n",
+                          mb, nanos / 1e6, logBytes(dir) >> 20, commitNanos[0] / 1e6);
+    }
+
+    /** @return the bytes in the log files in the given directory */
+    private static long logBytes(File dir) {
+        long total = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("log")) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,54 @@
+package simpledb.bench;
+
+import java.io.File;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Logs write-heavy transactions into a scratch log file from one thread:
+ * a BEGIN record, updatesPerTxn UPDATE records and a COMMIT record each.
+ * Every UPDATE logs the same change, the deletion of one tuple from a full
+ * page. Reports how many records and bytes per second the log takes, so
+ * the cost of serializing and writing records shows, rather than the cost
+ * of forcing the log, and how large the records are.
+ * <p>
+ * Usage: LogWriteBenchmark [updatesPerTxn] [seconds]
+ */
+public class LogWriteBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int updatesPerTxn = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(new TransactionId(),
+            new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+        HeapPage changed = new HeapPage(page.getId(), page.getPageData());
+        changed.deleteTuple(changed.iterator().next());
+
+        File f = File.createTempFile("logwrite", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+
+        long records = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int i = 0; i < updatesPerTxn; i++) {
+                log.logWrite(tid, page, changed);
+            }
+            log.logCommit(tid);
+            records += updatesPerTxn + 2;
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        long bytes = f.length();
+
+        System.out.printf("updates/txn %d: records/s %.0f, MB/s %.1f, txns/s %.0f, bytes/record %.0f%n",
+                          updatesPerTxn, records / secs, bytes / secs / (1 << 20),
+                          records / (double) (updatesPerTxn + 2) / secs, bytes / (double) records);
+        f.delete();
+    }
+}
@@ -0,0 +1,133 @@
+package simpledb.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Runs short update transactions from several threads, and reports the
+ * commit rate and latency with commits writing their pages (FORCE) and
+ * with the page writer writing them in the background (NO FORCE).
+ * <p>
+ * Each transaction deletes one tuple from each of a few random pages of a
+ * table and commits.
+ * <p>
+ * mode is "force", "noforce" or "both".
+ * <p>
+ * Usage: NoForceBenchmark [threads] [seconds] [pages per transaction] [mode]
+ */
+public class NoForceBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int PAGES = 256;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int pagesPerTransaction = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        String mode = args.length > 3 ? args[3] : "both";
+
+        if (mode.equals("both")) {
+            run(threads, seconds, pagesPerTransaction, false);
+            run(threads, seconds, pagesPerTransaction, true);
+        } else {
+            run(threads, seconds, pagesPerTransaction, mode.equals("noforce"));
+        }
+    }
+
+    private static void run(int threads, int seconds, final int pagesPerTransaction,
+                            boolean noForce) throws Exception {
+        Database.reset();
+        final HeapFile table = SystemTestUtil.createRandomHeapFile(2, PAGES * TUPLES_PER_PAGE, null, null);
+        final BufferPool bp = Database.resetBufferPool(2 * PAGES);
+        bp.setNoForce(noForce);
+
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final List<long[]> latencies = new ArrayList<>();
+        final int[] aborted = new int[1];
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final Random r = new Random(i);
+            new Thread() {
+                public void run() {
+                    long[] mine = new long[1024];
+                    int n = 0;
+                    try {
+                        while (System.nanoTime() < end) {
+                            long start = System.nanoTime();
+                            Transaction t = new Transaction();
+                            t.start();
+                            try {
+                                for (int p = 0; p < pagesPerTransaction; p++) {
+                                    deleteOne(bp, t, new HeapPageId(table.getId(), r.nextInt(PAGES)));
+                                }
+                                t.commit();
+                            } catch (TransactionAbortedException e) {
+                                t.transactionComplete(true);
+                                synchronized (aborted) {
+                                    aborted[0]++;
+                                }
+                                continue;
+                            }
+                            if (n == mine.length) {
+                                mine = Arrays.copyOf(mine, 2 * n);
+                            }
+                            mine[n++] = System.nanoTime() - start;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        synchronized (latencies) {
+                            latencies.add(Arrays.copyOf(mine, n));
+                        }
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        long drainStart = System.nanoTime();
+        bp.drainPageWriter();
+        long drainNanos = System.nanoTime() - drainStart;
+
+        int total = 0;
+        for (long[] l : latencies) {
+            total += l.length;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (long[] l : latencies) {
+            System.arraycopy(l, 0, all, pos, l.length);
+            pos += l.length;
+        }
+        Arrays.sort(all);
+        System.out.printf("%s, %d threads, %d pages per transaction: %d commits (%.0f/s), %d aborted%n",
+                          noForce ? "NO FORCE" : "FORCE", threads, pagesPerTransaction, total,
+                          total / (double) seconds, aborted[0]);
+        System.out.printf("transaction latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                          percentile(all, 0.5), percentile(all, 0.99),
+                          all.length == 0 ? 0 : all[all.length - 1] / 1e6);
+        System.out.printf("background writes %d, draining the page writer took %.1f ms%n",
+                          bp.getBackgroundWriteCount(), drainNanos / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+
+    private static void deleteOne(BufferPool bp, Transaction t, PageId pid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        if (it.hasNext()) {
+            bp.deleteTuple(t.getId(), it.next());
+        }
+    }
+}
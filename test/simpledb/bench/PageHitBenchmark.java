@@ -0,0 +1,74 @@
+package simpledb.bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the buffer pool hit path alone: threads call getPage over and
+ * over for pages that are cached and that their transaction has locked
+ * already, with no scan operator, tuple decoding or lock waits involved.
+ * Each thread runs its own read-only transaction.
+ * <p>
+ * Usage: PageHitBenchmark [pages] [hits per thread] [max threads]
+ */
+public class PageHitBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int hitsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, pages * TUPLES_PER_PAGE, null, null);
+        BufferPool bp = Database.resetBufferPool(pages * 2);
+        PageId[] pids = new PageId[pages];
+        for (int i = 0; i < pages; i++) {
+            pids[i] = new HeapPageId(f.getId(), i);
+        }
+        // warm up, so the JIT has compiled the hit path
+        run(bp, pids, 1, hitsPerThread);
+
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.println("threads\thits/s\tns/hit");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double rate = run(bp, pids, threads, hitsPerThread);
+            System.out.printf("%d\t%.0f\t%.1f%n", threads, rate, 1e9 / rate);
+        }
+    }
+
+    /** @return hits per second over all threads */
+    private static double run(final BufferPool bp, final PageId[] pids, int threads,
+                              final int hitsPerThread) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        for (PageId pid : pids) {
+                            bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        }
+                        start.await();
+                        for (int n = 0; n < hitsPerThread; n++) {
+                            bp.getPage(tid, pids[n % pids.length], Permissions.READ_ONLY);
+                        }
+                        bp.transactionComplete(tid);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        Thread.sleep(100);
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return (long) threads * hitsPerThread / ((System.nanoTime() - begin) / 1e9);
+    }
+}
@@ -0,0 +1,59 @@
+package simpledb.bench;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Times sequential scans that start with an empty buffer pool, with
+ * different read-ahead distances. Read-ahead overlaps reading and parsing
+ * the next pages with processing the current one; the gain is largest when
+ * the table is not in the operating system's page cache either, so drop
+ * that cache (e.g. echo 3 > /proc/sys/vm/drop_caches) between runs for true
+ * cold-cache numbers.
+ * <p>
+ * Usage: ReadAheadBenchmark [tablePages] [repetitions]
+ */
+public class ReadAheadBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int[] READ_AHEAD = {0, 2, 8, 16};
+
+    public static void main(String[] args) throws Exception {
+        int tablePages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, tablePages * TUPLES_PER_PAGE, null, null);
+        // one untimed pass to warm up the JIT
+        scanCold(f, tablePages, 0);
+
+        System.out.println("table pages: " + f.numPages());
+        System.out.println("read-ahead\tms\tpages/s");
+        for (int pages : READ_AHEAD) {
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < repetitions; r++) {
+                best = Math.min(best, scanCold(f, tablePages, pages));
+            }
+            System.out.printf("%d\t%d\t%.0f%n", pages, best / 1000000,
+                              f.numPages() / (best / 1e9));
+        }
+    }
+
+    /** @return nanoseconds taken by one scan through a fresh buffer pool */
+    private static long scanCold(HeapFile f, int tablePages, int readAhead)
+            throws Exception {
+        // big enough that the scan does not switch to a ring
+        BufferPool bp = Database.resetBufferPool(tablePages * 2);
+        bp.setReadAheadPages(readAhead);
+        TransactionId tid = new TransactionId();
+        long begin = System.nanoTime();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+        long elapsed = System.nanoTime() - begin;
+        bp.transactionComplete(tid);
+        return elapsed;
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Crashes the database after a run of short update transactions and times
+ * the restart, with the redo pass of recovery on different numbers of
+ * threads.
+ * <p>
+ * Each transaction deletes one tuple from a random page and commits. A
+ * handful more are still running at the crash, with their pages written
+ * out. Before each restart the table is put back the way it was before the
+ * first transaction, as if none of the committed pages had been written,
+ * so recovery has to redo every one of them and undo the running ones.
+ * Every restart recovers the same log, and ends with the same table.
+ * <p>
+ * Usage: RecoveryBenchmark [pages] [transactions] [threads,...]
+ */
+public class RecoveryBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int RUNNING = 8;
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        String[] threads = (args.length > 2 ? args[2] : "1,2,4").split(",");
+
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, pages * TUPLES_PER_PAGE, null, null);
+        File table = f.getFile();
+        File savedTable = File.createTempFile("recovery", ".dat");
+        savedTable.deleteOnExit();
+        Files.copy(table.toPath(), savedTable.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        BufferPool bp = Database.resetBufferPool(pages * 2);
+
+        Random r = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < transactions; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            deleteOne(bp, t, new HeapPageId(f.getId(), r.nextInt(pages)));
+            t.commit();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // running at the crash, each on a page of its own
+        List<Transaction> running = new ArrayList<>();
+        for (int i = 0; i < RUNNING && i < pages; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            deleteOne(bp, t, new HeapPageId(f.getId(), i));
+            running.add(t);
+        }
+        bp.flushAllPages();
+
+        File log = new File("log");
+        File savedLog = Files.createTempDirectory("recovery").toFile();
+        savedLog.deleteOnExit();
+        long logSize = copyLog(log, new File(savedLog, "log"));
+        for (File saved : savedLog.listFiles()) {
+            saved.deleteOnExit();
+        }
+        System.out.printf("%d transactions on %d pages in %.1f s, log of %d KB%n",
+                          transactions, pages, seconds, logSize / 1024);
+
+        for (String n : threads) {
+            Database.reset();
+            copyLog(new File(savedLog, "log"), log);
+            Files.copy(savedTable.toPath(), table.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            f = Utility.openHeapFile(2, table);
+            LogFile logFile = Database.getLogFile();
+            logFile.setRecoveryThreads(Integer.parseInt(n));
+            logFile.recover();
+            System.out.println(logFile.getLastRecovery());
+            System.out.println("tuples after recovery: " + count(f));
+        }
+    }
+
+    /**
+     * Replaces a log file and its segments with copies of another's.
+     *
+     * @return the number of bytes in the segments
+     */
+    private static long copyLog(File from, File to) throws IOException {
+        for (int n = 0; new File(to.getPath() + "." + n).exists(); n++) {
+            new File(to.getPath() + "." + n).delete();
+        }
+        Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        long size = 0;
+        for (int n = 0; new File(from.getPath() + "." + n).exists(); n++) {
+            File segment = new File(from.getPath() + "." + n);
+            Files.copy(segment.toPath(), new File(to.getPath() + "." + n).toPath());
+            size += segment.length();
+        }
+        return size;
+    }
+
+    private static void deleteOne(BufferPool bp, Transaction t, PageId pid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        if (it.hasNext()) {
+            bp.deleteTuple(t.getId(), it.next());
+        }
+    }
+
+    private static int count(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+}
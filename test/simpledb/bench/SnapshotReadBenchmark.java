@@ -0,0 +1,161 @@
+package simpledb.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Runs full table scans from some threads while other threads run short
+ * write transactions against the same table, and reports how much each side
+ * gets done and how long writers wait for their page locks.
+ * <p>
+ * Each write transaction locks one random page in exclusive mode, marks it
+ * dirty and commits, so the page is written back and its old image is
+ * superseded. Each read transaction scans the whole table and commits.
+ * With locking readers, a scan holds shared locks on every page it has read
+ * until it commits (or one on the whole table, once it escalates), which
+ * stalls the writers. With snapshot readers, scans take no locks.
+ * <p>
+ * mode is "locking", "snapshot" or "both".
+ * <p>
+ * Usage: SnapshotReadBenchmark [readers] [writers] [pages] [seconds] [mode]
+ */
+public class SnapshotReadBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        String mode = args.length > 4 ? args[4] : "both";
+
+        if (mode.equals("both")) {
+            run(readers, writers, pages, seconds, false);
+            run(readers, writers, pages, seconds, true);
+        } else {
+            run(readers, writers, pages, seconds, mode.equals("snapshot"));
+        }
+    }
+
+    private static void run(int readers, int writers, final int pages, int seconds,
+                            final boolean snapshot) throws Exception {
+        Database.reset();
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, pages * TUPLES_PER_PAGE, null, null);
+        final BufferPool bp = Database.resetBufferPool(pages * 2);
+
+        final AtomicLong scans = new AtomicLong();
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final List<long[]> waits = new ArrayList<>();
+        final int[] waitCounts = new int[writers];
+        final CountDownLatch done = new CountDownLatch(readers + writers);
+        final long end = System.nanoTime() + seconds * 1000000000L;
+
+        for (int i = 0; i < readers; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        while (System.nanoTime() < end) {
+                            TransactionId tid = new TransactionId();
+                            if (snapshot) {
+                                bp.beginSnapshot(tid);
+                            }
+                            try {
+                                DbFileIterator it = f.iterator(tid);
+                                it.open();
+                                while (it.hasNext()) {
+                                    it.next();
+                                }
+                                it.close();
+                                bp.transactionComplete(tid, true);
+                                scans.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                bp.transactionComplete(tid, false);
+                                aborts.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        for (int i = 0; i < writers; i++) {
+            final long[] mine = new long[1 << 20];
+            final int id = i;
+            waits.add(mine);
+            new Thread() {
+                public void run() {
+                    Random r = new Random(id);
+                    int n = 0;
+                    try {
+                        while (System.nanoTime() < end) {
+                            TransactionId tid = new TransactionId();
+                            PageId pid = new HeapPageId(f.getId(), r.nextInt(pages));
+                            try {
+                                long begin = System.nanoTime();
+                                Page page = bp.getPage(tid, pid, Permissions.READ_WRITE);
+                                if (n < mine.length) {
+                                    mine[n++] = System.nanoTime() - begin;
+                                }
+                                page.markDirty(true, tid);
+                                bp.transactionComplete(tid, true);
+                                commits.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                bp.transactionComplete(tid, false);
+                                aborts.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        waitCounts[id] = n;
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+
+        int total = 0;
+        for (int c : waitCounts) {
+            total += c;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (int i = 0; i < writers; i++) {
+            System.arraycopy(waits.get(i), 0, all, pos, waitCounts[i]);
+            pos += waitCounts[i];
+        }
+        Arrays.sort(all);
+
+        VersionStore versions = bp.getVersionStore();
+        System.out.printf("%s readers: readers %d, writers %d, pages %d%n",
+                          snapshot ? "snapshot" : "locking", readers, writers, pages);
+        System.out.printf("scans/s %.1f, write commits/s %.0f, aborts/s %.0f%n",
+                          scans.get() / (double) seconds, commits.get() / (double) seconds,
+                          aborts.get() / (double) seconds);
+        System.out.println("writer lock wait us: p50 " + micros(all, 0.50) + ", p90 " + micros(all, 0.90)
+                           + ", p99 " + micros(all, 0.99) + ", max " + micros(all, 1.0));
+        System.out.println("page versions collected " + versions.getCollectedCount()
+                           + ", still stored " + versions.getVersionCount());
+    }
+
+    private static long micros(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1000;
+    }
+}
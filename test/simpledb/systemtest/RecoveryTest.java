@@ -0,0 +1,229 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Crashes the database at various points and restarts it with
+ * LogFile.recover(). A crash is Database.reset() without flushing
+ * anything; copying back an older version of the table file stands for
+ * page writes that never made it to disk.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private File file;
+    private File saved;
+    private HeapFile table;
+    /** a table for transactions that must not lock the pages of the first */
+    private File otherFile;
+    private HeapFile other;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        FreeSpaceMap.sidecarFor(file).deleteOnExit();
+        saved = File.createTempFile("recovery", ".saved");
+        saved.deleteOnExit();
+        table = Utility.createEmptyHeapFile(file.getPath(), 2);
+        otherFile = File.createTempFile("recovery", ".dat");
+        otherFile.deleteOnExit();
+        FreeSpaceMap.sidecarFor(otherFile).deleteOnExit();
+        other = Utility.createEmptyHeapFile(otherFile.getPath(), 2);
+    }
+
+    private void insert(Transaction t, int value) throws Exception {
+        insert(t, table, value);
+    }
+
+    private void insert(Transaction t, HeapFile f, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(value, 2));
+    }
+
+    private void commitInsert(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, value);
+        t.commit();
+    }
+
+    /** Remembers the table file as it is now. */
+    private void saveTable() throws IOException {
+        Files.copy(file.toPath(), saved.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Crashes and restarts the database.
+     *
+     * @param loseWrites put back the table file saved by saveTable
+     */
+    private LogFile.RecoveryStats crash(boolean loseWrites) throws IOException {
+        Database.reset();
+        if (loseWrites) {
+            Files.copy(saved.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        table = Utility.openHeapFile(2, file);
+        other = Utility.openHeapFile(2, otherFile);
+        Database.getLogFile().recover();
+        return Database.getLogFile().getLastRecovery();
+    }
+
+    private Set<Integer> values() throws Exception {
+        return values(table);
+    }
+
+    private Set<Integer> values(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        Set<Integer> values = new HashSet<Integer>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    private static Set<Integer> set(Integer... values) {
+        Set<Integer> set = new HashSet<Integer>();
+        for (Integer v : values) {
+            set.add(v);
+        }
+        return set;
+    }
+
+    /** Committed changes are redone even if their pages were never written. */
+    @Test public void redoesCommittedChanges() throws Exception {
+        saveTable();
+        commitInsert(1);
+        commitInsert(2);
+        LogFile.RecoveryStats stats = crash(true);
+        assertEquals(set(1, 2), values());
+        assertEquals(0, stats.losers);
+    }
+
+    /** Uncommitted changes that were written to disk are rolled back. */
+    @Test public void undoesUnfinishedTransactions() throws Exception {
+        commitInsert(1);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 2);
+        Database.getBufferPool().flushAllPages();
+        LogFile.RecoveryStats stats = crash(false);
+        assertEquals(set(1), values());
+        assertEquals(1, stats.losers);
+    }
+
+    /**
+     * A rollback is redone like any other change, so the slot an aborted
+     * insert had written to disk keeps the value a later commit put there.
+     */
+    @Test public void redoesRollbacks() throws Exception {
+        saveTable();
+        Transaction aborted = new Transaction();
+        aborted.start();
+        insert(aborted, 1);
+        Database.getBufferPool().flushAllPages();
+        aborted.transactionComplete(true);
+        commitInsert(3);
+        crash(true);
+        assertEquals(set(3), values());
+    }
+
+    /**
+     * Rolling back a transaction that deleted a row on the same page as a
+     * committed delete leaves the committed one deleted.
+     */
+    @Test public void undoKeepsCommittedDeletesOnSharedPage() throws Exception {
+        commitInsert(1);
+        commitInsert(2);
+        HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), 0));
+        Transaction loser = new Transaction();
+        loser.start();
+        Transaction winner = new Transaction();
+        winner.start();
+        Database.getBufferPool().deleteTuple(loser.getId(), page.getTuples().get(0));
+        Database.getBufferPool().deleteTuple(winner.getId(), page.getTuples().get(1));
+        Database.getBufferPool().flushAllPages();
+        winner.commit();
+        LogFile.RecoveryStats stats = crash(false);
+        assertEquals(set(1), values());
+        assertEquals(1, stats.losers);
+    }
+
+    /**
+     * Changes logged before a checkpoint are on disk, while transactions
+     * running at the checkpoint are still rolled back.
+     */
+    @Test public void recoversFromCheckpoint() throws Exception {
+        commitInsert(1);
+        Transaction running = new Transaction();
+        running.start();
+        insert(running, other, 2);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        saveTable();
+        commitInsert(3);
+        LogFile.RecoveryStats stats = crash(true);
+        assertEquals(set(1, 3), values());
+        assertEquals(set(), values(other));
+        assertEquals(1, stats.losers);
+    }
+
+    /**
+     * Checkpoints write no pages, so a change logged before the last one
+     * whose page was never written is redone from the checkpoint's dirty
+     * page table.
+     */
+    @Test public void redoesPagesDirtyAtCheckpoint() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(1, 2));
+        Page page = Database.getBufferPool().getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+        LogFile log = Database.getLogFile();
+        log.logWrite(tid, page.getBeforeImage(), page);
+        log.logCommit(tid);
+        // the page is dropped without being written
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        log.logCheckpoint();
+        assertEquals(1, log.getDirtyPageCount());
+
+        LogFile.RecoveryStats stats = crash(false);
+        assertEquals(set(1), values());
+        assertEquals(1, stats.redone);
+    }
+
+    /**
+     * A record only partly written when the system went down is ignored,
+     * and the log can be written and recovered again afterwards.
+     */
+    @Test public void ignoresTornRecord() throws Exception {
+        commitInsert(1);
+        RandomAccessFile log = new RandomAccessFile("log.0", "rw");
+        log.seek(log.length());
+        log.writeInt(3);
+        log.writeLong(12345);
+        log.close();
+        crash(false);
+        assertEquals(set(1), values());
+
+        commitInsert(2);
+        crash(false);
+        assertEquals(set(1, 2), values());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs two full scans of a table four times the size of the buffer pool
+ * while a small working set of hot pages keeps being reused, and checks how
+ * often the hot pages are still cached. The scans are interleaved page by
+ * page with each other and with the hot accesses, so the hit counts are
+ * deterministic. Only accesses after the first two rounds over the hot pages
+ * are counted, which gives 2Q the chance to see each hot page reused.
+ */
+public class ScanResistanceTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = BufferPool.DEFAULT_PAGES;
+    private static final int HOT_PAGES = 20;
+    private static final int TUPLES_PER_PAGE = 504;
+
+    /** @return the fraction of steady state hot page accesses that hit in the pool */
+    private double hotHitRate(ReplacementPolicy policy, boolean bulkRead)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, HOT_PAGES * TUPLES_PER_PAGE, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, POOL_PAGES * 4 * TUPLES_PER_PAGE, null, null);
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES, policy);
+
+        TransactionId hotTid = new TransactionId();
+        // warm the working set up; it has been used twice before the scans start
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < HOT_PAGES; i++) {
+                bp.getPage(hotTid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+            }
+        }
+
+        TransactionId scanTid1 = new TransactionId();
+        TransactionId scanTid2 = new TransactionId();
+        DbFileIterator scan1 = big.iterator(scanTid1, bulkRead);
+        DbFileIterator scan2 = big.iterator(scanTid2, bulkRead);
+        scan1.open();
+        // start the second scan half way behind the first one
+        for (int i = 0; i < POOL_PAGES * 2 * TUPLES_PER_PAGE && scan1.hasNext(); i++) {
+            scan1.next();
+        }
+        scan2.open();
+
+        long hotAccesses = 0;
+        long hotHits = 0;
+        int next = 0;
+        int round = 0;
+        boolean more = true;
+        while (more) {
+            more = false;
+            for (DbFileIterator scan : new DbFileIterator[]{scan1, scan2}) {
+                for (int i = 0; i < TUPLES_PER_PAGE && scan.hasNext(); i++) {
+                    scan.next();
+                    more = true;
+                }
+            }
+            long missesBefore = bp.getMissCount();
+            bp.getPage(hotTid, new HeapPageId(hot.getId(), next), Permissions.READ_ONLY);
+            if (round >= 2 * HOT_PAGES) {
+                hotAccesses++;
+                if (bp.getMissCount() == missesBefore) {
+                    hotHits++;
+                }
+            }
+            round++;
+            next = (next + 1) % HOT_PAGES;
+        }
+        scan1.close();
+        scan2.close();
+        bp.transactionComplete(hotTid);
+        bp.transactionComplete(scanTid1);
+        bp.transactionComplete(scanTid2);
+        return (double) hotHits / hotAccesses;
+    }
+
+    @Test public void testTwoQueueKeepsHotPages()
+            throws IOException, DbException, TransactionAbortedException {
+        double clock = hotHitRate(new ClockReplacementPolicy(POOL_PAGES), false);
+        double twoQueue = hotHitRate(new TwoQueueReplacementPolicy(POOL_PAGES), false);
+        assertTrue("2Q hit rate " + twoQueue + " below 0.9", twoQueue >= 0.9);
+        assertTrue(twoQueue >= clock);
+    }
+
+    @Test public void testScanRingLeavesPoolAlone()
+            throws IOException, DbException, TransactionAbortedException {
+        double clock = hotHitRate(new ClockReplacementPolicy(POOL_PAGES), true);
+        assertTrue("hit rate " + clock + " with scan rings", clock == 1.0);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanResistanceTest.class);
+    }
+}